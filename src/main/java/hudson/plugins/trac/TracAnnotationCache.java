@@ -0,0 +1,130 @@
+package hudson.plugins.trac;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the links {@link TracLinkAnnotator} added to recently viewed
+ * commit messages, so that viewing the changes of a build again doesn't
+ * run any regular expression.
+ *
+ * <p>
+ * Entries are keyed by the message and the {@link TracProjectProperty#tracWebsite}
+ * they were rendered for, so changing the Trac website of a project makes its
+ * old entries unreachable; they are evicted like any other least recently used entry
+ * once the cache holds more than its maximum number of messages.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TracAnnotationCache {
+    private final int maxSize;
+    private final Map<Key,Annotation> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    TracAnnotationCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Key,Annotation>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key,Annotation> eldest) {
+                return size()>TracAnnotationCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return null if the message hasn't been annotated for this website yet.
+     */
+    Annotation get(String url, String message) {
+        if (maxSize<=0)
+            return null;
+        Annotation a;
+        synchronized (entries) {
+            a = entries.get(new Key(url, message));
+        }
+        (a==null ? misses : hits).incrementAndGet();
+        return a;
+    }
+
+    void put(String url, String message, Annotation annotation) {
+        if (maxSize<=0)
+            return;
+        synchronized (entries) {
+            entries.put(new Key(url, message), annotation);
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * The links of one message: the spans and their rendered start tags.
+     */
+    static final class Annotation {
+        final TracLinkSpan[] spans;
+        final String[] startTags;
+        /**
+         * Number of the ticket each span links to, -1 for the spans not linking to a ticket.
+         */
+        final int[] tickets;
+
+        Annotation(String message, List<TracLinkSpan> spans, String[] startTags) {
+            this.spans = spans.toArray(new TracLinkSpan[spans.size()]);
+            this.startTags = startTags;
+            this.tickets = new int[this.spans.length];
+            for (int i=0; i<tickets.length; i++) {
+                int kind = this.spans[i].kind;
+                tickets[i] = kind==TracLinkAnnotator.TICKET || kind==TracLinkAnnotator.TICKET_COMMENT
+                        ? TracReferences.number(message, this.spans[i]) : -1;
+            }
+        }
+
+        void addTickets(Collection<Integer> ids) {
+            for (int id : tickets)
+                if (id>=0)
+                    ids.add(id);
+        }
+    }
+
+    private static final class Key {
+        private final String url;
+        private final String message;
+        private final int hash;
+
+        Key(String url, String message) {
+            this.url = url;
+            this.message = message;
+            this.hash = url.hashCode()*31+message.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key that = (Key) o;
+            return hash==that.hash && url.equals(that.url) && message.equals(that.message);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package hudson.plugins.trac;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numbers the builds of all the jobs, so that the global {@link TracTicketIndex}
+ * can refer to a build with a single int.
+ *
+ * <p>
+ * The file lists the builds in the order they were numbered, each as the full
+ * name of its job and its build number, with the renames of jobs and folders
+ * in between: the old full name, {@link #RENAMED} and the new one. It is only
+ * ever appended to, and read into memory with the name of every job kept once
+ * and the builds of every job in a map, so that finding a build takes the same
+ * time however many there are.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TracBuildTable {
+    private final File file;
+    private final List<String> jobs = new ArrayList<String>();
+    private int[] numbers = new int[16];
+    /**
+     * Interned job names, so that the builds of a job share one string.
+     */
+    private final Map<String,String> names = new HashMap<String,String>();
+    /**
+     * Ids of the builds of every job, by build number.
+     */
+    private final Map<String,Map<Integer,Integer>> ids = new HashMap<String,Map<Integer,Integer>>();
+
+    private TracBuildTable(File file) {
+        this.file = file;
+    }
+
+    static TracBuildTable load(File file) throws IOException {
+        TracBuildTable table = new TracBuildTable(file);
+        if (!file.exists())
+            return table;
+        long complete = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                String job;
+                int number;
+                try {
+                    job = in.readUTF();
+                    number = in.readInt();
+                } catch (EOFException e) {
+                    break;  // the end, or a build cut short by a crash, which the index doesn't refer to
+                }
+                if (number==RENAMED) {
+                    String to;
+                    try {
+                        to = in.readUTF();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    table.move(job, to);
+                    complete += 2+utfLength(job)+4+2+utfLength(to);
+                    continue;
+                }
+                table.append(job, number);
+                complete += 2+utfLength(job)+4;
+            }
+        } finally {
+            in.close();
+        }
+        if (complete<file.length()) {
+            // drop the build cut short, so that the next ones are appended right after the last complete one
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(complete);
+            } finally {
+                raf.close();
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Number of bytes {@link DataOutputStream#writeUTF(String)} writes for the string, without its length.
+     */
+    private static int utfLength(String s) {
+        int n = 0;
+        for (int i=0; i<s.length(); i++) {
+            char ch = s.charAt(i);
+            n += ch>=0x0001 && ch<=0x007F ? 1 : ch>0x07FF ? 3 : 2;
+        }
+        return n;
+    }
+
+    /**
+     * Gets the id of a build, numbering it if it has none yet.
+     */
+    synchronized int add(String job, int number) throws IOException {
+        int id = find(job, number);
+        if (id>=0)
+            return id;
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Failed to create "+dir);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        try {
+            out.writeUTF(job);
+            out.writeInt(number);
+        } finally {
+            out.close();
+        }
+        return append(job, number);
+    }
+
+    private int append(String job, int number) {
+        String name = intern(job);
+        int id = jobs.size();
+        jobs.add(name);
+        if (id==numbers.length)
+            numbers = Arrays.copyOf(numbers, id*2);
+        numbers[id] = number;
+        Map<Integer,Integer> builds = ids.get(name);
+        if (builds==null)
+            ids.put(name, builds = new HashMap<Integer,Integer>());
+        builds.put(number, id);
+        return id;
+    }
+
+    private String intern(String job) {
+        String name = names.get(job);
+        if (name==null)
+            names.put(job, name = job);
+        return name;
+    }
+
+    /**
+     * Finds the id of a build.
+     *
+     * @return -1 if it has none.
+     */
+    synchronized int find(String job, int number) {
+        Map<Integer,Integer> builds = ids.get(job);
+        Integer id = builds==null ? null : builds.get(number);
+        return id==null ? -1 : id;
+    }
+
+    /**
+     * Records that a job, or a folder with the given jobs in it, was renamed,
+     * so that its builds are known by the new full name.
+     */
+    synchronized void rename(String from, String to) throws IOException {
+        boolean found = false;
+        for (String job : ids.keySet())
+            found |= renamed(job, from, to)!=null;
+        if (!found)
+            return;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        try {
+            out.writeUTF(from);
+            out.writeInt(RENAMED);
+            out.writeUTF(to);
+        } finally {
+            out.close();
+        }
+        move(from, to);
+    }
+
+    private void move(String from, String to) {
+        Map<String,Map<Integer,Integer>> moved = new HashMap<String,Map<Integer,Integer>>();
+        for (Iterator<Map.Entry<String,Map<Integer,Integer>>> it = ids.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String,Map<Integer,Integer>> e = it.next();
+            String job = renamed(e.getKey(), from, to);
+            if (job!=null) {
+                moved.put(job, e.getValue());
+                names.remove(e.getKey());
+                it.remove();
+            }
+        }
+        for (Map.Entry<String,Map<Integer,Integer>> e : moved.entrySet()) {
+            Map<Integer,Integer> builds = ids.get(e.getKey());
+            if (builds==null)
+                ids.put(intern(e.getKey()), e.getValue());
+            else
+                builds.putAll(e.getValue());
+        }
+        for (int id=0; id<jobs.size(); id++) {
+            String job = renamed(jobs.get(id), from, to);
+            if (job!=null)
+                jobs.set(id, intern(job));
+        }
+    }
+
+    /**
+     * Gets the full name of a job after renaming the given job or folder.
+     *
+     * @return null if it isn't renamed.
+     */
+    private static String renamed(String job, String from, String to) {
+        if (job.equals(from))
+            return to;
+        if (job.startsWith(from) && job.charAt(from.length())=='/')
+            return to+job.substring(from.length());
+        return null;
+    }
+
+    synchronized String getJob(int id) {
+        return jobs.get(id);
+    }
+
+    synchronized int getNumber(int id) {
+        if (id>=jobs.size())
+            throw new IndexOutOfBoundsException(String.valueOf(id));
+        return numbers[id];
+    }
+
+    synchronized int size() {
+        return jobs.size();
+    }
+
+    /**
+     * Written in place of the build number before the new name of a renamed job or folder.
+     */
+    static final int RENAMED = -1;
+}
@@ -0,0 +1,86 @@
+package hudson.plugins.trac;
+
+import hudson.scm.EditType;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The Trac links of a changeset and of all its paths, made in one go by
+ * {@link TracRepositoryBrowser#getLinks(hudson.scm.SubversionChangeLogSet.LogEntry)}
+ * or {@link TracGitRepositoryBrowser#getLinks(hudson.plugins.git.GitChangeSet)},
+ * so that a view of a large changeset doesn't ask the browser for every
+ * link separately.
+ *
+ * <p>
+ * The changes page is rendered by the SCM plugins, which ask the browser for
+ * one link at a time, so this is only for the views and plugins that call
+ * <tt>getLinks</tt> themselves.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class TracChangeSetLinks {
+    private final String changeSetLink;
+    private final List<PathLinks> paths;
+
+    TracChangeSetLinks(String changeSetLink, List<PathLinks> paths) {
+        this.changeSetLink = changeSetLink;
+        this.paths = Collections.unmodifiableList(paths);
+    }
+
+    /**
+     * Link to the changeset page.
+     */
+    public String getChangeSetLink() {
+        return changeSetLink;
+    }
+
+    /**
+     * Links of every path of the changeset, in the order Trac lists them on the changeset page.
+     */
+    public List<PathLinks> getPaths() {
+        return paths;
+    }
+
+    /**
+     * The links of one path of a changeset.
+     */
+    public static final class PathLinks {
+        private final String path;
+        private final EditType editType;
+        private final String fileLink;
+        private final String diffLink;
+
+        PathLinks(String path, EditType editType, String fileLink, String diffLink) {
+            this.path = path;
+            this.editType = editType;
+            this.fileLink = fileLink;
+            this.diffLink = diffLink;
+        }
+
+        /**
+         * Path as recorded in the changeset.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public EditType getEditType() {
+            return editType;
+        }
+
+        /**
+         * Link to the file in the repository browser, null if the path doesn't make a valid link.
+         */
+        public String getFileLink() {
+            return fileLink;
+        }
+
+        /**
+         * Link to the diff of the file, null if the file wasn't edited.
+         */
+        public String getDiffLink() {
+            return diffLink;
+        }
+    }
+}
@@ -6,16 +6,25 @@ import hudson.model.Descriptor;
 import hudson.model.Hudson;
 import hudson.plugins.git.GitChangeSet;
 import hudson.plugins.git.GitChangeSet.Path;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
 import hudson.plugins.git.browser.GitRepositoryBrowser;
 import hudson.scm.ChangeLogSet;
 import hudson.scm.EditType;
 import hudson.scm.RepositoryBrowser;
+import hudson.scm.SCM;
 import hudson.scm.SubversionChangeLogSet.LogEntry;
-import hudson.scm.browsers.QueryBuilder;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
@@ -28,6 +37,18 @@ public class TracGitRepositoryBrowser extends GitRepositoryBrowser {
     
 	private static final long serialVersionUID = 1L;
 
+    /**
+     * {@link TracLinkContext}s of the changesets links were recently made for.
+     */
+    private transient Map<GitChangeSet,TracLinkContext> contexts;
+
+    /**
+     * Trac repository name of the SCM this browser belongs to,
+     * and the property it was resolved with.
+     */
+    private transient TracProjectProperty repositoryProperty;
+    private transient String repositoryName;
+
     @DataBoundConstructor
     public TracGitRepositoryBrowser() {
     }
@@ -40,60 +61,99 @@ public class TracGitRepositoryBrowser extends GitRepositoryBrowser {
     protected TracProjectProperty getTracProjectProperty(GitChangeSet changeSet) {
        	ChangeLogSet<?> cs = changeSet.getParent();
         AbstractProject<?,?> p = (AbstractProject<?,?>)cs.build.getProject();
-        return p.getProperty(TracProjectProperty.class);
+        return TracProjectProperty.of(p);
+    }
+
+    /**
+     * Gets the remote URLs of the SCM of the project of a changeset.
+     * This function is protected to allow the tests to override it.
+     */
+    protected Collection<String> getScmUrls(GitChangeSet changeSet) {
+        SCM scm = changeSet.getParent().build.getProject().getScm();
+        List<String> urls = new ArrayList<String>();
+        if (scm instanceof GitSCM) {
+        	for (UserRemoteConfig remote : ((GitSCM)scm).getUserRemoteConfigs())
+        		urls.add(remote.getUrl());
+        }
+        return urls;
     }
 
     /**
-     * Gets a URL for the {@link TracProjectProperty#tracWebsite} value
-     * configured for the current project.
-     */ 
-    private URL getTracWebURL(GitChangeSet changeSet) throws MalformedURLException {
-    	TracProjectProperty tpp = getTracProjectProperty(changeSet);
-        if(tpp==null)   
+     * Gets the {@link TracLinkContext} of a changeset, resolving it on first use,
+     * so that the links of all its paths share it.
+     */
+    private TracLinkContext getContext(GitChangeSet changeSet) throws MalformedURLException {
+        TracLinkContext context;
+        synchronized (this) {
+            if (contexts==null)
+                contexts = new WeakHashMap<GitChangeSet,TracLinkContext>();
+            context = contexts.get(changeSet);
+        }
+        if (context!=null && context.isCurrent())
+            return context;
+
+        int generation = TracProjectProperty.GENERATION.get();
+        TracProjectProperty tpp = getTracProjectProperty(changeSet);
+        context = new TracLinkContext(tpp, getRepositoryName(changeSet, tpp), generation);
+        synchronized (this) {
+            contexts.put(changeSet, context);
+        }
+        return context;
+    }
+
+    /**
+     * Gets the name of the Trac repository of the SCM this browser belongs to,
+     * which only needs resolving again once the property changes.
+     */
+    private String getRepositoryName(GitChangeSet changeSet, TracProjectProperty tpp) {
+        if (tpp == null || tpp.getRepositories().isEmpty())
         	return null;
-        else
-        	return new URL(tpp.tracWebsite);
-    }    
-    
+        synchronized (this) {
+            if (repositoryProperty == tpp)
+            	return repositoryName;
+        }
+        String name = tpp.getRepositoryName(getScmUrls(changeSet));
+        synchronized (this) {
+            repositoryProperty = tpp;
+            repositoryName = name;
+        }
+        return name;
+    }
+
     /**
-     * Gets the String from {@link TracProjectProperty#tracWebsite} 
-	 * which will be appended to the browser URL.
+     * Appends the stripped path to the browser URL, after the browser path of its mapping.
      * See JENKINS-13366
      */
-    private String getTracAppendToBrowserURL(GitChangeSet changeSet)  {
-    	TracProjectProperty tpp = getTracProjectProperty(changeSet);
-        if(tpp==null || tpp.tracAppendedToBrowserURL==null)   
-        	return "";
-        else
-        	return tpp.tracAppendedToBrowserURL;
-    }    
-
-    private String getPath(Path path) {
-        String pathValue = path.getPath();
-        TracProjectProperty tpp = getTracProjectProperty(path.getChangeSet());
-        if(tpp != null && tpp.tracStrippedFromChangesetPath != null && pathValue != null
-            && pathValue.startsWith(tpp.tracStrippedFromChangesetPath))
-            return pathValue.substring(tpp.tracStrippedFromChangesetPath.length());
-        else
-            return pathValue;
-    }    
-    
+    private static StringBuilder appendBrowserPath(StringBuilder buf, TracLinkContext context, String pathValue)  {
+        TracPathMapping mapping = context.getMapping(pathValue);
+        if(context.repository != null)
+        	buf.append(context.repository).append('/');
+        if(mapping.browserPath != null)
+        	buf.append(mapping.browserPath);
+        return buf.append(TracLinkContext.getPath(mapping, pathValue));
+    }
+
     @Override
     public URL getDiffLink(Path path) throws IOException {
-    	// Normally the diffs of a changeset are shown on one single Trac HTML page 
+    	// The diffs of a changeset are shown on one single Trac HTML page 
     	// and use the pattern <url>"/changeset/"<changesetID>"#file"<NoOfFileInChangeset>
-    	// But because the git changeset doesn't return an order list (only a HashSet)
-    	// it is not possible to get correct index for the file inside the changeset.
+    	// The git changeset doesn't return an ordered list (only a HashSet),
     	// see https://github.com/jenkinsci/git-plugin/blob/master/src/main/java/hudson/plugins/git/GitChangeSet.java#L57
-    	    	
-    	// Therefore a different URL pattern is used to show only the diff of a single file. 
-    	// returns <url>"/changeset/"<changesetID>/<file>
-    	// The drawback is 'only' that the user has to navigate and not only to scroll to see other diffs.
+    	// so the paths are sorted the way git and Trac list them to get the index of the file.
+    	// Reviewers then scroll through one page instead of loading one page per file.
     	
-    	// Instead of https://fedorahosted.org/eclipse-fedorapackager/changeset/0956859f7db2656cae445488689a214c104bf1b3#file3
-    	// e.g.       https://fedorahosted.org/eclipse-fedorapackager/changeset/0956859f7db2656cae445488689a214c104bf1b3/org.fedoraproject.eclipse.packager.rpm/src/org/fedoraproject/eclipse/packager/rpm/internal/handlers/SRPMImportHandler.java
+    	// e.g. https://fedorahosted.org/eclipse-fedorapackager/changeset/0956859f7db2656cae445488689a214c104bf1b3#file3
         if (path.getEditType() == EditType.EDIT) {
-        	return new URL(getTracWebURL(path.getChangeSet()), getChangeSetLink(path.getChangeSet()).toString() + "/" + getPath(path) );            
+        	TracLinkContext context = getContext(path.getChangeSet());
+        	if (context.links == null)
+        		return null;
+        	StringBuilder link = changeSetLink(context, path.getChangeSet());
+        	int index = context.getFileIndex(path.getChangeSet().getAffectedPaths(), path.getPath());
+        	if (index < 0) // not a path of its own changeset, link to the diff of the file alone
+        		link.append('/').append(context.getPath(path.getPath()));
+        	else
+        		link.append("#file").append(index);
+        	return TracLinkBuilder.toURL(link);
         }
         return null;
     }
@@ -102,26 +162,75 @@ public class TracGitRepositoryBrowser extends GitRepositoryBrowser {
     public URL getFileLink(Path path) throws IOException {
     	// returns <url>"/browser/"<file>"$rev="<changsetID>
     	// e.g. https://fedorahosted.org/eclipse-fedorapackager/browser/org.fedoraproject.eclipse.packager.rpm/src/org/fedoraproject/eclipse/packager/rpm/RpmText.java?rev=0956859f7db2656cae445488689a214c104bf1b3
-        String spec;
-        URL url = getTracWebURL(path.getChangeSet());
+        TracLinkContext context = getContext(path.getChangeSet());
+        if (context.links == null)
+        	return null;
+        StringBuilder link = appendBrowserPath(context.links.absolute("browser/"), context, path.getPath());
         if (path.getEditType() == EditType.DELETE) {
-        	spec = new QueryBuilder(url.getQuery()).add("rev="+path.getChangeSet().getParentCommit()).toString();
+        	context.links.appendQuery(link, "rev", path.getChangeSet().getParentCommit());
         } else {
-        	spec = new QueryBuilder(url.getQuery()).add("rev="+path.getChangeSet().getId()).toString();
+        	context.links.appendQuery(link, "rev", path.getChangeSet().getId());
         }
-        return new URL(url, url.getPath() + "browser/" + getTracAppendToBrowserURL(path.getChangeSet()) + getPath(path) + spec);
+        return TracLinkBuilder.toURL(link);
     }
 
     @Override
     public URL getChangeSetLink(GitChangeSet changeSet) throws IOException {
     	// returns <url>"/changeset/"<changsetID>
     	// e.g. https://fedorahosted.org/eclipse-fedorapackager/changeset/0956859f7db2656cae445488689a214c104bf1b3
-        URL url = getTracWebURL(changeSet);
-        return new URL(url, url.getPath() + "changeset/" + changeSet.getId());
+        TracLinkContext context = getContext(changeSet);
+        return context.links == null ? null : TracLinkBuilder.toURL(changeSetLink(context, changeSet));
+    }
+
+    /**
+     * Links to the changeset, in its repository if the Trac site has several.
+     */
+    private static StringBuilder changeSetLink(TracLinkContext context, GitChangeSet changeSet) {
+        StringBuilder link = context.links.absolute("changeset/").append(changeSet.getId());
+        if (context.repository != null)
+        	link.append('/').append(context.repository);
+        return link;
+    }
+
+    /**
+     * Gets the links of a changeset and of all its paths at once,
+     * resolving what they have in common only once.
+     *
+     * @return null if the project has no Trac website.
+     */
+    public TracChangeSetLinks getLinks(GitChangeSet changeSet) throws IOException {
+        TracLinkContext context = getContext(changeSet);
+        if (context.links == null)
+        	return null;
+        String changeSetLink = TracLinkBuilder.toExternalForm(changeSetLink(context, changeSet));
+        List<TracChangeSetLinks.PathLinks> paths = new ArrayList<TracChangeSetLinks.PathLinks>(changeSet.getPaths().size());
+        StringBuilder buf = context.links.absolute("browser/");
+        final int browserLength = buf.length();
+        for (Path path : sortForTrac(changeSet.getPaths())) {
+        	String rev = path.getEditType() == EditType.DELETE ? changeSet.getParentCommit() : changeSet.getId();
+        	buf.setLength(browserLength);
+        	String fileLink = TracLinkBuilder.toExternalForm(context.links.appendQuery(appendBrowserPath(buf, context, path.getPath()), "rev", rev));
+        	String diffLink = null;
+        	if (path.getEditType() == EditType.EDIT)
+        		diffLink = changeSetLink + "#file" + paths.size();
+        	paths.add(new TracChangeSetLinks.PathLinks(path.getPath(), path.getEditType(), fileLink, diffLink));
+        }
+        return new TracChangeSetLinks(changeSetLink, paths);
+    }
+
+    /**
+     * Sorts the paths of a changeset the way Trac lists them on the changeset page.
+     */
+    private static List<Path> sortForTrac(Collection<Path> paths) {
+        List<Path> sorted = new ArrayList<Path>(paths);
+        Collections.sort(sorted, new Comparator<Path>() {
+            public int compare(Path a, Path b) {
+                return TracLinkContext.CODE_POINT_ORDER.compare(a.getPath(), b.getPath());
+            }
+        });
+        return sorted;
     }
 
-    
-    
     @Extension(optional = true)
     public static final class DescriptorImpl extends Descriptor<RepositoryBrowser<?>> {
         public DescriptorImpl() {
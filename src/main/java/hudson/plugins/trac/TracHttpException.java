@@ -0,0 +1,30 @@
+package hudson.plugins.trac;
+
+import java.io.IOException;
+
+/**
+ * HTTP error status returned for a Trac XML-RPC call.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class TracHttpException extends IOException {
+    private final int responseCode;
+
+    public TracHttpException(int responseCode, String message) {
+        super(message);
+        this.responseCode = responseCode;
+    }
+
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    /**
+     * Whether Trac refused the call for who made it, so that making it again won't help.
+     */
+    public boolean isDenied() {
+        return responseCode==401 || responseCode==403;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
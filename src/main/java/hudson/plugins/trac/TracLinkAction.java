@@ -7,10 +7,14 @@ import hudson.model.Action;
  * @author Kohsuke Kawaguchi
  */
 public class TracLinkAction implements Action {
-    private final TracProjectProperty prop;
+    private final String url;
 
     public TracLinkAction(TracProjectProperty prop) {
-        this.prop = prop;
+        this.url = prop.tracWebsite;
+    }
+
+    TracLinkAction(TracSite site) {
+        this.url = site.url;
     }
 
     public String getIconFileName() {
@@ -22,6 +26,6 @@ public class TracLinkAction implements Action {
     }
 
     public String getUrlName() {
-        return prop.tracWebsite;
+        return url;
     }
 }
@@ -4,98 +4,520 @@ import hudson.Extension;
 import hudson.MarkupText;
 import hudson.MarkupText.SubText;
 import hudson.model.AbstractBuild;
+import hudson.plugins.trac.TracAnnotationCache.Annotation;
 import hudson.scm.ChangeLogAnnotator;
+import hudson.scm.ChangeLogSet;
 import hudson.scm.ChangeLogSet.Entry;
+import hudson.util.DaemonThreadFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
+import static hudson.plugins.trac.TracLinkMatcher.BRACE;
+import static hudson.plugins.trac.TracLinkMatcher.BRACKET;
+import static hudson.plugins.trac.TracLinkMatcher.CAMEL;
+import static hudson.plugins.trac.TracLinkMatcher.COLON;
+import static hudson.plugins.trac.TracLinkMatcher.DIGIT;
+import static hudson.plugins.trac.TracLinkMatcher.HASH;
+import static hudson.plugins.trac.TracLinkMatcher.REV;
+
 /**
  * Annotates <a href="http://trac.edgewall.org/wiki/TracLinks">TracLink</a>
  * and <a href="http://trac.edgewall.org/wiki/InterTrac">InterTrac</a>
  * notation in changelog messages.
  *
+ * <p>
+ * For the projects that {@linkplain TracProjectProperty#showTicketStatus show the status of tickets},
+ * the ticket numbers of the whole changelog are collected first and fetched from
+ * Trac in one batch. Rendering never waits for Trac: links to tickets that
+ * {@link TracTicketCache} doesn't know yet are rendered as usual, and show
+ * their status once the page is rendered again after they arrived.
+ *
+ * <p>
+ * The one instance is called concurrently by all the request threads that
+ * render changes. Everything it shares between them is either immutable or
+ * synchronized, and the scratch state of {@link #MATCHER} is kept per thread.
+ *
  * @author Kohsuke Kawaguchi
  * @author Rick Riemer
  */
 @Extension
 public class TracLinkAnnotator extends ChangeLogAnnotator {
+    private final TracAnnotationCache cache;
+
+    /**
+     * When the tickets of the changelog of a build were last prefetched.
+     */
+    private final Map<AbstractBuild<?,?>,Long> prefetched = new WeakHashMap<AbstractBuild<?,?>,Long>();
+
+    public TracLinkAnnotator() {
+        this(CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize
+     *      Number of messages whose links are cached, 0 to always look for them.
+     */
+    TracLinkAnnotator(int cacheSize) {
+        cache = new TracAnnotationCache(cacheSize);
+    }
+
     @Override
     public void annotate(AbstractBuild<?,?> build, Entry change, MarkupText text) {
-        TracProjectProperty tpp = build.getProject().getProperty(TracProjectProperty.class);
-        if(tpp==null || tpp.tracWebsite==null)
+        TracProjectProperty tpp = TracProjectProperty.of(build.getProject());
+        if(tpp==null)
             return; // not configured
 
-        annotate(tpp.tracWebsite, text);
+        TracLinkRenderer renderer = tpp.getSite().getRenderer();
+        TracTicketCache tickets = getTickets(tpp);
+        if (tickets!=null)
+            prefetch(renderer, build, tickets);
+        annotate(renderer, text, build, tickets);
+    }
+
+    private static TracTicketCache getTickets(TracProjectProperty tpp) {
+        return tpp.showTicketStatus ? TracProjectProperty.DescriptorImpl.TICKETS : null;
+    }
+
+    /**
+     * Starts fetching the tickets of the whole changelog of a build, the first
+     * time one of its entries is annotated, so that they are fetched in one
+     * batch rather than one call per link.
+     */
+    private void prefetch(TracLinkRenderer renderer, AbstractBuild<?,?> build, TracTicketCache tickets) {
+        long now = System.currentTimeMillis();
+        synchronized (prefetched) {
+            Long last = prefetched.get(build);
+            if (last!=null && now-last<TracProjectProperty.DescriptorImpl.TICKET_TTL)
+                return; // the links refresh what they show themselves
+            prefetched.put(build, now);
+        }
+        ChangeLogSet<? extends Entry> changes = build.getChangeSet();
+        if (changes==null)
+            return;
+        Set<Integer> ids = new TreeSet<Integer>();
+        for (Entry e : changes) {
+            String msg = e.getMsg();
+            Annotation a = msg==null ? null : annotation(renderer, msg, build);
+            if (a!=null)
+                a.addTickets(ids);
+        }
+        tickets.prefetch(renderer.url, ids);
+    }
+
+    /**
+     * Annotates the messages of all the entries of a changelog at once.
+     *
+     * <p>
+     * The {@link TracProjectProperty} is looked up only once, and changelogs
+     * with more than {@link #PARALLEL_THRESHOLD} entries are annotated in parallel.
+     * Only the Trac links are added; other {@link ChangeLogAnnotator}s are not run.
+     *
+     * @return
+     *      the annotated message of every entry, in the iteration order of the changelog,
+     *      or an empty map if the project has no Trac website configured.
+     */
+    public Map<Entry,MarkupText> annotate(AbstractBuild<?,?> build, ChangeLogSet<? extends Entry> changes) {
+        TracProjectProperty tpp = TracProjectProperty.of(build.getProject());
+        if(tpp==null)
+            return Collections.emptyMap(); // not configured
+
+        return annotate(tpp.getSite().getRenderer(), changes, getTickets(tpp));
+    }
+
+    Map<Entry,MarkupText> annotate(String url, Iterable<? extends Entry> changes) {
+        return annotate(url, changes, null);
+    }
+
+    /**
+     * @param tickets
+     *      where to get the status of the tickets from, null not to show it.
+     */
+    Map<Entry,MarkupText> annotate(String url, Iterable<? extends Entry> changes, TracTicketCache tickets) {
+        return annotate(new TracLinkRenderer(url), changes, tickets);
+    }
+
+    private Map<Entry,MarkupText> annotate(final TracLinkRenderer renderer, Iterable<? extends Entry> changes,
+            TracTicketCache tickets) {
+        final List<Entry> entries = new ArrayList<Entry>();
+        for (Entry e : changes)
+            entries.add(e);
+        final MarkupText[] texts = new MarkupText[entries.size()];
+        final Annotation[] annotations = new Annotation[texts.length];
+
+        final int threshold = Math.max(1, PARALLEL_THRESHOLD);
+        if (texts.length<=threshold) {
+            annotate(renderer, entries, texts, annotations, 0, texts.length);
+        } else {
+            int chunks = Math.min(PARALLELISM, (texts.length+threshold-1)/threshold);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i=1; i<chunks; i++) {
+                final int from = texts.length*i/chunks, to = texts.length*(i+1)/chunks;
+                futures.add(getExecutor().submit(new Callable<Void>() {
+                    public Void call() {
+                        annotate(renderer, entries, texts, annotations, from, to);
+                        return null;
+                    }
+                }));
+            }
+            annotate(renderer, entries, texts, annotations, 0, texts.length/chunks);
+            waitFor(futures);
+        }
+
+        if (tickets!=null) {
+            Set<Integer> ids = new TreeSet<Integer>();
+            for (Annotation a : annotations)
+                if (a!=null)
+                    a.addTickets(ids);
+            tickets.prefetch(renderer.url, ids);
+        }
+
+        Map<Entry,MarkupText> r = new LinkedHashMap<Entry,MarkupText>();
+        for (int i=0; i<texts.length; i++) {
+            if (annotations[i]!=null)
+                addMarkup(texts[i], annotations[i], renderer.url, tickets);
+            r.put(entries.get(i), texts[i]);
+        }
+        return r;
+    }
+
+    /**
+     * Finds the links of the given entries, leaving the markup to be added
+     * once the tickets they link to are being fetched.
+     */
+    private void annotate(TracLinkRenderer renderer, List<Entry> entries, MarkupText[] texts, Annotation[] annotations,
+            int from, int to) {
+        for (int i=from; i<to; i++) {
+            texts[i] = new MarkupText(entries.get(i).getMsg());
+            annotations[i] = annotation(renderer, texts[i].getText(), null);
+        }
+    }
+
+    /**
+     * Waits for the chunks annotated by other threads.
+     * They are short and CPU bound, so an interrupt is only passed on afterwards.
+     */
+    private static void waitFor(List<Future<?>> futures) {
+        boolean interrupted = false;
+        for (Future<?> f : futures) {
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Failed to annotate the changelog", e.getCause());
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor==null)
+            executor = Executors.newFixedThreadPool(PARALLELISM-1, new DaemonThreadFactory());
+        return executor;
     }
 
     void annotate(String url, MarkupText text) {
-        for (LinkMarkup markup : MARKUPS) {
-            markup.process(text, url);
+        annotate(url, text, null);
+    }
+
+    /**
+     * @param tickets
+     *      where to get the status of the tickets from, null not to show it.
+     */
+    void annotate(String url, MarkupText text, TracTicketCache tickets) {
+        annotate(new TracLinkRenderer(url), text, null, tickets);
+    }
+
+    private void annotate(TracLinkRenderer renderer, MarkupText text, AbstractBuild<?,?> build, TracTicketCache tickets) {
+        Annotation a = annotation(renderer, text.getText(), build);
+        if (a!=null)
+            addMarkup(text, a, renderer.url, tickets);
+    }
+
+    /**
+     * Gets the links of a message.
+     *
+     * @param build
+     *      The build the message belongs to, to use the spans stored for it, if any.
+     * @return null if looking for them took too long.
+     */
+    private Annotation annotation(TracLinkRenderer renderer, String msg, AbstractBuild<?,?> build) {
+        Annotation a = cache.get(renderer.url, msg);
+        if (a==null) {
+            TracLinkSpanFile stored = build!=null ? TracLinkSpanFile.of(build, renderer.url) : null;
+            List<TracLinkSpan> spans = stored!=null ? stored.get(msg) : null;
+            if (spans==null) {
+                spans = MATCHER.find(msg, TIME_BUDGET*1000000L);
+                if (spans==null)
+                    return null; // took too long, leave this message as it is
+            }
+            String[] startTags = new String[spans.size()];
+            for (int i=0; i<startTags.length; i++)
+                startTags[i] = renderer.startTag(msg, spans.get(i));
+            a = new Annotation(msg, spans, startTags);
+            cache.put(renderer.url, msg, a);
         }
+        return a;
     }
 
-    private static final class LinkMarkup {
-        private final Pattern pattern;
-        private final String href;
+    /**
+     * Adds the links to the message, with the status of the tickets that are known.
+     * Asking for the others starts loading them, without waiting for them.
+     */
+    private static void addMarkup(MarkupText text, Annotation a, String url, TracTicketCache tickets) {
+        for (int i=0; i<a.spans.length; i++) {
+            TracLinkSpan span = a.spans[i];
+            String startTag = a.startTags[i];
+            if (tickets!=null && a.tickets[i]>=0) {
+                TracTicket ticket = tickets.getIfPresent(url, a.tickets[i]);
+                if (ticket!=null)
+                    startTag = TracLinkRenderer.ticketStartTag(startTag, ticket);
+            }
+            text.addMarkup(span.start, span.end, startTag, TracLinkRenderer.END_TAG);
+        }
+    }
+
+    /**
+     * Number of messages whose links were taken from the cache.
+     */
+    public long getCacheHitCount() {
+        return cache.getHitCount();
+    }
+
+    /**
+     * Number of messages that had to be scanned for links.
+     */
+    public long getCacheMissCount() {
+        return cache.getMissCount();
+    }
 
-        LinkMarkup(String pattern, String href) {
-            pattern = NUM_PATTERN.matcher(pattern).replaceAll("(\\\\d+)"); // \\\\d becomes \\d when in the expanded text.
-            pattern = ANYWORD_PATTERN.matcher(pattern).replaceAll("([\\\\w.-]+)");
+    static final class LinkMarkup {
+        final Pattern pattern;
+        /**
+         * The href, compiled into segments that are either a literal or,
+         * when {@link #groupRefs} is not -1, the number of the group to insert.
+         */
+        private final String[] literals;
+        private final int[] groupRefs;
+        /**
+         * Characters this markup can start with, indexed by their code.
+         */
+        private final boolean[] firstChars;
+        /**
+         * True if this markup starts with ANYWORD, so matching from the middle
+         * of a word gives the same outcome as matching from its first character.
+         */
+        final boolean wordRun;
+        /**
+         * Character classes of {@link TracLinkMatcher} a message needs to contain for this markup to match.
+         * Each element is a set of alternatives, at least one of which must be present.
+         */
+        private final int[] requires;
+
+        /**
+         * @param firstChar
+         *      Character class of the characters a match can start with.
+         * @param requires
+         *      See {@link #requires}.
+         */
+        LinkMarkup(String pattern, String href, String firstChar, int... requires) {
+            this.wordRun = pattern.startsWith("ANYWORD");
+            // possessive, see TracLinkMatcher for why this doesn't change what matches
+            pattern = NUM_PATTERN.matcher(pattern).replaceAll("(\\\\d++)"); // \\\\d becomes \\d when in the expanded text.
+            pattern = ANYWORD_PATTERN.matcher(pattern).replaceAll("([\\\\w.-]++)");
             this.pattern = Pattern.compile(pattern);
-            this.href = href;
+
+            List<String> literals = new ArrayList<String>();
+            List<Integer> groupRefs = new ArrayList<Integer>();
+            compileHref(href, literals, groupRefs);
+            this.literals = literals.toArray(new String[literals.size()]);
+            this.groupRefs = new int[groupRefs.size()];
+            for (int i=0; i<this.groupRefs.length; i++)
+                this.groupRefs[i] = groupRefs.get(i);
+            this.firstChars = asciiTable(firstChar);
+            this.requires = requires;
+        }
+
+        /**
+         * Whether this markup can match a message containing the given character classes.
+         */
+        boolean isPossible(int charClasses) {
+            for (int alternatives : requires)
+                if ((charClasses&alternatives)==0)
+                    return false;
+            return true;
         }
 
-        void process(MarkupText text, String url) {
-            for(SubText st : text.findTokens(pattern)) {
-                st.surroundWith(
-                    "<a href='"+url+href+"'>",
-                    "</a>");
+        boolean startsWith(char ch) {
+            return ch<ASCII && firstChars[ch];
+        }
+
+        /**
+         * Appends the href of this markup for the given match,
+         * expanding "$n" like {@link SubText#surroundWith(String, String)} does.
+         */
+        void appendHref(StringBuilder buf, String text, TracLinkSpan span) {
+            for (int i=0; i<literals.length; i++) {
+                if (groupRefs[i]<0)
+                    buf.append(literals[i]);
+                else
+                    span.appendGroup(buf, text, groupRefs[i]);
+            }
+        }
+
+        /**
+         * Splits the href into literal segments and group references, so that
+         * it doesn't have to be parsed again for every match.
+         */
+        private static void compileHref(String href, List<String> literals, List<Integer> groupRefs) {
+            StringBuilder literal = new StringBuilder();
+            for (int i=0; i<href.length(); i++) {
+                char ch = href.charAt(i);
+                if (ch=='\\') {
+                    literal.append(href.charAt(++i));
+                } else if (ch=='$') {
+                    ch = href.charAt(++i);
+                    int groupId = ch-'0';
+                    if (groupId<0 || groupId>9) {
+                        literal.append('$').append(ch);
+                    } else {
+                        if (literal.length()>0) {
+                            literals.add(literal.toString());
+                            groupRefs.add(-1);
+                            literal.setLength(0);
+                        }
+                        literals.add(null);
+                        groupRefs.add(groupId);
+                    }
+                } else {
+                    literal.append(ch);
+                }
             }
+            if (literal.length()>0) {
+                literals.add(literal.toString());
+                groupRefs.add(-1);
+            }
+        }
+
+        static boolean isWordRunChar(char ch) {
+            return ch<ASCII && WORD_RUN_CHARS[ch];
+        }
+
+        private static boolean[] asciiTable(String charClass) {
+            Pattern p = Pattern.compile(charClass);
+            boolean[] table = new boolean[ASCII];
+            for (char ch=0; ch<ASCII; ch++)
+                table[ch] = p.matcher(String.valueOf(ch)).matches();
+            return table;
         }
 
+        static final int ASCII = 128;
+
         private static final Pattern NUM_PATTERN = Pattern.compile("NUM");
         private static final Pattern ANYWORD_PATTERN = Pattern.compile("ANYWORD");
+        private static final boolean[] WORD_RUN_CHARS = asciiTable("[\\w.-]");
     }
 
-    private static final LinkMarkup[] MARKUPS = new LinkMarkup[] {
+    /**
+     * Indices of the {@link #MARKUPS} that {@link TracReferences} extracts.
+     */
+    static final int TICKET = 0, TICKET_COMMENT = 1, REPORT = 2, CHANGESET = 4, MILESTONE = 6;
+
+    static final LinkMarkup[] MARKUPS = new LinkMarkup[] {
         new LinkMarkup(
             "(?<!\\:)(?:#|ticket:)NUM",  // "#123" or "ticket:123" but not ":#123" or ":ticket:123"
-            "ticket/$1"),
+            "ticket/$1",
+            "[#t]", DIGIT, HASH|COLON),
         new LinkMarkup(
             "comment:ticket:NUM:NUM",
-            "ticket/$1#comment:$2"),
+            "ticket/$1#comment:$2",
+            "c", DIGIT, COLON),
         new LinkMarkup(
             "\\{NUM\\}|report:NUM",
-            "report/$1$2"),  // only $1 or $2 matches, and the other will expand to ""
+            "report/$1$2",  // only $1 or $2 matches, and the other will expand to ""
+            "[{r]", DIGIT, BRACE|COLON),
         new LinkMarkup(
             "rNUM:NUM|\\[NUM:NUM\\]|(?<!\\:)log:@NUM:NUM",
-            "log/?rev=$2$4$6&stop_ver=$1$3$5"),
+            "log/?rev=$2$4$6&stop_ver=$1$3$5",
+            "[r\\[l]", DIGIT, COLON),
         new LinkMarkup(
             "rNUM(?!:)|\\[NUM\\]|(?<!\\:)changeset:NUM", // (?!:) is a position match with negative look ahead, so that "r5" portion of "r5:6" won't match.
-            "changeset/$1$2$3"),
+            "changeset/$1$2$3",
+            "[r\\[c]", DIGIT, REV|BRACKET|COLON),
         // TODO: log:trunk@1:3 format
         // TODO: diffs
         new LinkMarkup(
-            "(?<!\\:)(?:((?:[A-Z][a-z]+){2,})|wiki:ANYWORD)",
-            "wiki/$1$2"),
+            "(?<!\\:)(?:((?:[A-Z][a-z]++){2,}+)|wiki:ANYWORD)",
+            "wiki/$1$2",
+            "[A-Zw]", CAMEL|COLON),
         new LinkMarkup(
             "milestone:ANYWORD",
-            "milestone/$1"),
+            "milestone/$1",
+            "m", COLON),
         // TODO: attachment and file.
         new LinkMarkup( // InterTrac ticket links (short: #T123)
             "#([a-zA-Z])NUM",
-            "search?q=%23$1$2"),
+            "search?q=%23$1$2",
+            "#", HASH, DIGIT),
         new LinkMarkup( // InterTrac changeset links (short: [T123])
              "\\[([a-zA-Z])NUM\\]",
-             "search?q=%5B$1$2%5D"),
+             "search?q=%5B$1$2%5D",
+             "\\[", BRACKET, DIGIT),
         new LinkMarkup( // InterTrac ticket links (medium: trac:#123)
             "ANYWORD\\:#NUM",
-            "search?q=$1%3A%23$2"),
+            "search?q=$1%3A%23$2",
+            "[\\w.-]", COLON, HASH, DIGIT),
         new LinkMarkup( // InterTrac ticket or changeset links (full: trac:ticket:123)
             "ANYWORD\\:((?:ticket)|(?:changeset))\\:NUM",
-            "search?q=$1%3A$2%3A$3"),
+            "search?q=$1%3A$2%3A$3",
+            "[\\w.-]", COLON, DIGIT),
         new LinkMarkup( // InterTrac wiki links (full: trac:wiki:PageName)
             "ANYWORD\\:wiki\\:ANYWORD",
-            "search?q=$1%3Awiki%3A$2")
+            "search?q=$1%3Awiki%3A$2",
+            "[\\w.-]", COLON)
     };
+
+    /**
+     * Links are only looked for in this many characters at the start of a changelog message.
+     */
+    public static final int MAX_MESSAGE_LENGTH = Integer.getInteger(TracLinkAnnotator.class.getName()+".maxMessageLength", 256*1024);
+
+    /**
+     * Milliseconds a page request may spend looking for the links of one changelog message,
+     * 0 for no limit. Messages taking longer are shown without links.
+     */
+    public static int TIME_BUDGET = Integer.getInteger(TracLinkAnnotator.class.getName()+".timeBudget", 200);
+
+    static final TracLinkMatcher MATCHER = new TracLinkMatcher(MARKUPS, MAX_MESSAGE_LENGTH);
+
+    /**
+     * Changelogs with more entries than this are annotated by several threads.
+     */
+    public static int PARALLEL_THRESHOLD = Integer.getInteger(TracLinkAnnotator.class.getName()+".parallelThreshold", 1000);
+
+    /**
+     * Maximum number of annotated messages kept in memory, 0 to disable the cache.
+     */
+    public static int CACHE_SIZE = Integer.getInteger(TracLinkAnnotator.class.getName()+".cacheSize", 4096);
+
+    private static final int PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService executor;
 }
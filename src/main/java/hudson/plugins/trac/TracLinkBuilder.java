@@ -0,0 +1,133 @@
+package hudson.plugins.trac;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Builds links into a Trac website from its URL parsed and split once,
+ * so that a page with thousands of links doesn't parse the website URL
+ * again for every one of them.
+ *
+ * <p>
+ * Links under the website path are appended to a single {@link StringBuilder}
+ * after its protocol, authority and path, and only parsed when a {@link URL}
+ * has to be returned, with {@link #toURL(CharSequence)}. Links relative to the
+ * website are {@linkplain #resolve(CharSequence) resolved} against the parsed
+ * URL instead, because resolving also removes "." and ".." segments, unless
+ * only their string is needed and they have no such segments.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TracLinkBuilder {
+    private final URL base;
+    /**
+     * Protocol and authority, e.g. "https://trac.example.org".
+     */
+    private final String origin;
+    /**
+     * Path of the website, e.g. "/project/".
+     */
+    private final String path;
+    /**
+     * {@link #path} up to and including its last '/', which is what
+     * relative links are resolved against.
+     */
+    private final String directory;
+    /**
+     * True if {@link #directory} has a "." or ".." segment, which resolving removes.
+     */
+    private final boolean dotSegments;
+    /**
+     * Query of the website, null if it has none.
+     */
+    private final String query;
+
+    /**
+     * @throws MalformedURLException
+     *      if the website isn't a valid URL.
+     */
+    TracLinkBuilder(String website) throws MalformedURLException {
+        this.base = new URL(website);
+        String authority = base.getAuthority();
+        // the way URL.toExternalForm() puts them together
+        this.origin = base.getProtocol() + ':' + (authority==null || authority.length()==0 ? "" : "//" + authority);
+        this.path = base.getPath();
+        this.directory = path.substring(0, path.lastIndexOf('/')+1);
+        this.dotSegments = directory.contains("/.");
+        this.query = base.getQuery();
+    }
+
+    /**
+     * Starts a link with the given path under the website path,
+     * like {@code new URL(website, website.getPath()+path)} does.
+     */
+    StringBuilder absolute(String path) {
+        return new StringBuilder(origin.length()+this.path.length()+path.length()+64)
+                .append(origin).append(this.path).append(path);
+    }
+
+    /**
+     * Appends the query of the website and the given parameter,
+     * like {@link hudson.scm.browsers.QueryBuilder} does.
+     */
+    StringBuilder appendQuery(StringBuilder buf, String name, String value) {
+        buf.append('?');
+        if (query!=null)
+            buf.append(query).append('&');
+        return buf.append(name).append('=').append(value);
+    }
+
+    /**
+     * Parses a link started with {@link #absolute(String)}.
+     */
+    static URL toURL(CharSequence link) throws MalformedURLException {
+        return new URL(link.toString());
+    }
+
+    /**
+     * Same as {@code toURL(link).toString()}, without parsing links that
+     * parsing wouldn't change.
+     */
+    static String toExternalForm(CharSequence link) throws MalformedURLException {
+        int len = link.length();
+        if (len>0 && link.charAt(len-1)<=' ')
+            return toURL(link).toString();  // trailing white space is trimmed
+        return link.toString();
+    }
+
+    /**
+     * Resolves a link relative to the website, like {@code new URL(website, link)} does.
+     */
+    URL resolve(CharSequence link) throws MalformedURLException {
+        return new URL(base, link.toString());
+    }
+
+    /**
+     * Same as {@code resolve(link).toString()}, without parsing links that
+     * resolving wouldn't change.
+     */
+    String resolveToString(CharSequence link) throws MalformedURLException {
+        if (dotSegments || needsResolving(link))
+            return resolve(link).toString();
+        return new StringBuilder(origin.length()+directory.length()+link.length())
+                .append(origin).append(directory).append(link).toString();
+    }
+
+    /**
+     * Whether the link could have a protocol, an absolute path, a query, a "."
+     * or ".." segment or trailing white space, which only {@link #resolve(CharSequence)} handles.
+     */
+    private static boolean needsResolving(CharSequence link) {
+        final int len = link.length();
+        if (len>0 && link.charAt(len-1)<=' ')
+            return true;
+        for (int i=0; i<len; i++) {
+            char ch = link.charAt(i);
+            if (ch=='#')
+                return false;   // the fragment is taken as it is
+            if (ch==':' || ch=='?' || (ch=='.' || ch=='/') && i==0 || ch=='.' && link.charAt(i-1)=='/')
+                return true;
+        }
+        return false;
+    }
+}
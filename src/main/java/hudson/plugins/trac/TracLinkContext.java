@@ -0,0 +1,156 @@
+package hudson.plugins.trac;
+
+import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What the repository browsers need from the {@link TracProjectProperty} of a
+ * changeset to link its paths, resolved once per changeset instead of once
+ * per link.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TracLinkContext {
+    /**
+     * Null if the project has no Trac property.
+     */
+    final TracProjectProperty property;
+    /**
+     * Links into {@link TracProjectProperty#tracWebsite}, null if the project has no Trac property.
+     */
+    final TracLinkBuilder links;
+    /**
+     * Name of the Trac repository of the SCM, null for the default repository.
+     */
+    final String repository;
+    /**
+     * {@link TracProjectProperty#getPathMappings()} by prefix, null if the project has no Trac property.
+     */
+    private final TracPrefixTrie<TracPathMapping> mappings;
+    /**
+     * Used for the paths that no mapping matches.
+     */
+    private final TracPathMapping defaultMapping;
+    /**
+     * {@link TracProjectProperty#GENERATION} this was resolved in.
+     */
+    private final int generation;
+    /**
+     * Position of every path of the changeset on the Trac changeset page,
+     * by the path as recorded by the SCM, made on first use.
+     */
+    private volatile Map<String,Integer> fileIndices;
+
+    /**
+     * @param property
+     *      may be null.
+     * @param repository
+     *      {@link #repository}
+     * @param generation
+     *      {@link TracProjectProperty#GENERATION} before the property was looked up.
+     */
+    TracLinkContext(TracProjectProperty property, String repository, int generation) throws MalformedURLException {
+        this.property = property;
+        this.repository = repository;
+        this.generation = generation;
+        this.links = property==null ? null : property.getLinkBuilder();
+        this.mappings = property==null ? null : property.getPathTrie();
+        this.defaultMapping = new TracPathMapping("", property==null ? null : property.tracAppendedToBrowserURL);
+    }
+
+    /**
+     * False once any project has been saved since this was resolved.
+     */
+    boolean isCurrent() {
+        return generation==TracProjectProperty.GENERATION.get();
+    }
+
+    /**
+     * Gets the mapping with the longest prefix the given changeset path starts with.
+     */
+    TracPathMapping getMapping(String pathValue) {
+        if(mappings == null || pathValue == null)
+            return defaultMapping;
+        TracPathMapping m = mappings.longestPrefixOf(pathValue);
+        return m == null ? defaultMapping : m;
+    }
+
+    /**
+     * Strips the prefix of its {@linkplain #getMapping(String) mapping} from a changeset path.
+     */
+    String getPath(String pathValue) {
+        return getPath(getMapping(pathValue), pathValue);
+    }
+
+    static String getPath(TracPathMapping mapping, String pathValue) {
+        if(pathValue == null || mapping.prefix.length() == 0)
+            return pathValue;
+        return pathValue.substring(mapping.prefix.length());
+    }
+
+    /**
+     * Gets the position of a path among the paths of the changeset on the Trac
+     * changeset page, which is what its <tt>#file<i>N</i></tt> anchors are numbered by.
+     * Trac numbers them by the paths in the repository, before any mapping strips them.
+     *
+     * @param paths
+     *      All the paths of the changeset, as recorded by the SCM.
+     * @param path
+     *      One of them.
+     * @return -1 if the path is not one of the paths.
+     */
+    int getFileIndex(Collection<String> paths, String path) {
+        Map<String,Integer> indices = fileIndices;
+        if (indices==null) {
+            String[] sorted = sortForTrac(paths);
+            indices = new HashMap<String,Integer>(sorted.length*4/3+1);
+            for (int i=0; i<sorted.length; i++)
+                indices.put(sorted[i], i);
+            fileIndices = indices;
+        }
+        Integer index = indices.get(path);
+        return index==null ? -1 : index;
+    }
+
+    /**
+     * Sorts the paths the way Trac lists them on a changeset page.
+     */
+    static String[] sortForTrac(Collection<String> paths) {
+        String[] sorted = paths.toArray(new String[paths.size()]);
+        Arrays.sort(sorted, CODE_POINT_ORDER);
+        return sorted;
+    }
+
+    /**
+     * Orders strings by their Unicode code points, which is also the byte order of
+     * their UTF-8 encoding, the order in which Git and Subversion report the paths
+     * of a commit. {@link String#compareTo(String)} differs from it for characters
+     * outside of the Basic Multilingual Plane.
+     */
+    static final Comparator<String> CODE_POINT_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            final int n = Math.min(a.length(), b.length());
+            for (int i=0; i<n; i++) {
+                char x = a.charAt(i), y = b.charAt(i);
+                if (x!=y)
+                    return fixup(x)-fixup(y);
+            }
+            return a.length()-b.length();
+        }
+
+        /**
+         * Moves the surrogates above the other UTF-16 code units.
+         */
+        private int fixup(char ch) {
+            if (ch>=0xE000)
+                return ch-0x800;
+            if (ch>=0xD800)
+                return ch+0x2000;
+            return ch;
+        }
+    };
+}
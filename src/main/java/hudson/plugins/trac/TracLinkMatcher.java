@@ -0,0 +1,329 @@
+package hudson.plugins.trac;
+
+import hudson.plugins.trac.TracLinkAnnotator.LinkMarkup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+
+/**
+ * Finds the occurrences of all {@link LinkMarkup}s in a message in a single
+ * left-to-right pass.
+ *
+ * <p>
+ * The result is exactly what running {@link hudson.MarkupText#findTokens(java.util.regex.Pattern)}
+ * once per markup would produce: each markup keeps its own resume position, so
+ * that markups never see their own overlapping matches but may still overlap
+ * each other, and matches not on a word boundary are dropped.
+ * Instead of rescanning the whole message per markup, every markup is only
+ * tried, anchored, at the positions where its first character can occur.
+ *
+ * <p>
+ * Before that, a cheap pre-scan collects the character classes present in the
+ * message, so that markups which cannot possibly match are not tried at all
+ * and messages without any of them are returned right away.
+ *
+ * <h2>Running time</h2>
+ * <p>
+ * Finding the links of a message of length <i>n</i> takes O(<i>n</i>) time
+ * for the fixed set of markups, even for generated messages of hundreds of KB:
+ * <ul>
+ * <li>All quantifiers of the markups are possessive, so an attempt at a position
+ *     never backtracks and costs at most the length of the text it looks at.
+ *     This doesn't change what matches: backtracking into a run of digits or word
+ *     characters could only produce a match that ends inside that run, which the
+ *     word boundary rule rejects anyway.
+ * <li>A markup is only tried where its first character occurs, and markups
+ *     starting with a word are only tried at the start of each word. The text one
+ *     attempt looks at extends at most to the next character such an attempt can
+ *     start at, plus one more word for <tt>wiki:</tt> InterTrac links, so every
+ *     character is looked at a bounded number of times per markup.
+ * <li>After a match, a markup resumes after its end, as {@code Matcher.find()} does.
+ * </ul>
+ * On top of that, only links starting within the first {@link #maxLength}
+ * characters are looked for, and a time budget can be given to
+ * {@link #find(String, long)}.
+ *
+ * <h2>Concurrency</h2>
+ * <p>
+ * An instance is shared by all the threads that annotate changelogs. The markups
+ * it is made of are immutable, and everything a search needs to change, the
+ * {@link Matcher}s, resume positions and span list, is kept per thread and
+ * {@linkplain Matcher#reset(CharSequence) reset} for the next message, so
+ * finding links neither allocates matchers nor synchronizes.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TracLinkMatcher {
+    private final LinkMarkup[] markups;
+    /**
+     * Links are only looked for in this many characters at the start of a message.
+     */
+    private final int maxLength;
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong truncatedMessages = new AtomicLong();
+    private final AtomicLong timedOutMessages = new AtomicLong();
+    private final AtomicLong skippedMessages = new AtomicLong();
+    private final AtomicLong skippedMarkups = new AtomicLong();
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    TracLinkMatcher(LinkMarkup[] markups, int maxLength) {
+        this.markups = markups.clone();
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Finds all the links in the given message.
+     *
+     * @return spans ordered by markup, then by position, which is the order
+     *      in which {@link TracLinkAnnotator} has always added its markup.
+     *      The list is reused by the next call on the same thread, so callers
+     *      that keep the spans must copy them.
+     */
+    List<TracLinkSpan> find(String text) {
+        return find(text, 0);
+    }
+
+    /**
+     * Finds all the links in the given message, giving up after the given time.
+     *
+     * @param budgetNanos
+     *      Time after which to give up, 0 or less for no limit.
+     * @return
+     *      same as {@link #find(String)}, or null if the time budget ran out.
+     */
+    List<TracLinkSpan> find(String text, long budgetNanos) {
+        messages.incrementAndGet();
+        final int classes = charClasses(text);
+        int possible = 0;
+        for (int i=0; i<markups.length; i++)
+            if (markups[i].isPossible(classes))
+                possible |= 1<<i;
+        if (possible==0) {
+            skippedMessages.incrementAndGet();
+            return Collections.emptyList();
+        }
+        skippedMarkups.addAndGet(markups.length-Integer.bitCount(possible));
+
+        final int len = text.length();
+        final int limit = Math.min(len, maxLength);
+        if (limit<len)
+            truncatedMessages.incrementAndGet();
+        final long deadline = budgetNanos>0 ? System.nanoTime()+budgetNanos : 0;
+        final Scratch s = scratch.get();
+        try {
+            return s.find(text, possible, limit, deadline);
+        } finally {
+            s.release();
+        }
+    }
+
+    /**
+     * The state of one search, reused by all the searches of a thread.
+     */
+    private final class Scratch {
+        private final Matcher[] matchers;
+        private final int[] resume;
+        private final ArrayList<TracLinkSpan> spans = new ArrayList<TracLinkSpan>();
+        private final ArrayList<TracLinkSpan> sorted = new ArrayList<TracLinkSpan>();
+        private final int[] counts;
+        /**
+         * Bit mask of the {@link #matchers} that were given the current message.
+         */
+        private int used;
+
+        Scratch() {
+            matchers = new Matcher[markups.length];
+            for (int i=0; i<markups.length; i++) {
+                Matcher m = matchers[i] = markups[i].pattern.matcher("");
+                m.useTransparentBounds(true);   // let the (?<!\:) look-behinds see before p
+                m.useAnchoringBounds(false);    // kept by reset()
+            }
+            resume = new int[markups.length];
+            counts = new int[markups.length+1];
+        }
+
+        List<TracLinkSpan> find(String text, int possible, int limit, long deadline) {
+            final int len = text.length();
+            Arrays.fill(resume, 0);
+            spans.clear();
+
+            for (int p=0; p<limit; p++) {
+                if (deadline!=0 && (p&TIME_CHECK_INTERVAL)==0 && System.nanoTime()-deadline>0) {
+                    timedOutMessages.incrementAndGet();
+                    return null;
+                }
+                char ch = text.charAt(p);
+                if (ch>=LinkMarkup.ASCII)
+                    continue;   // no markup starts with a non-ASCII character
+                for (int i=0; i<markups.length; i++) {
+                    LinkMarkup markup = markups[i];
+                    if ((possible&(1<<i))==0 || p<resume[i] || !markup.startsWith(ch))
+                        continue;
+                    if (markup.wordRun && p>resume[i] && LinkMarkup.isWordRunChar(text.charAt(p-1)))
+                        continue;   // tried from the start of this word already, the outcome can't differ
+
+                    Matcher m = matchers[i];
+                    if ((used&(1<<i))==0) {
+                        m.reset(text);
+                        used |= 1<<i;
+                    }
+                    m.region(p, len);
+                    if (!m.lookingAt())
+                        continue;
+                    resume[i] = m.end();
+                    if (isWordBoundary(text, m.start(), m.end()))
+                        spans.add(new TracLinkSpan(i, m));
+                }
+            }
+            return sortByMarkup();
+        }
+
+        /**
+         * Orders the spans by markup, keeping the position order within each markup.
+         * A counting sort, as there are only a few markups.
+         */
+        private List<TracLinkSpan> sortByMarkup() {
+            final int n = spans.size();
+            boolean ordered = true;
+            for (int i=1; i<n && ordered; i++)
+                ordered = spans.get(i-1).kind<=spans.get(i).kind;
+            if (ordered)
+                return spans;
+
+            Arrays.fill(counts, 0);
+            for (int i=0; i<n; i++)
+                counts[spans.get(i).kind+1]++;
+            for (int k=1; k<counts.length; k++)
+                counts[k] += counts[k-1];
+            sorted.clear();
+            sorted.addAll(spans);   // only to size the list
+            for (int i=0; i<n; i++) {
+                TracLinkSpan span = spans.get(i);
+                sorted.set(counts[span.kind]++, span);
+            }
+            return sorted;
+        }
+
+        /**
+         * Lets go of the message, so that a thread doesn't keep a large one alive.
+         */
+        void release() {
+            for (int i=0; used!=0; i++, used>>>=1)
+                if ((used&1)!=0)
+                    matchers[i].reset("");
+        }
+    }
+
+    /**
+     * Number of messages {@link #find(String)} was called with.
+     */
+    long getMessageCount() {
+        return messages.get();
+    }
+
+    /**
+     * Number of messages returned without trying any markup.
+     */
+    long getSkippedMessageCount() {
+        return skippedMessages.get();
+    }
+
+    /**
+     * Number of times a markup was not tried because the message lacked its characters.
+     * Doesn't include the markups of skipped messages.
+     */
+    long getSkippedMarkupCount() {
+        return skippedMarkups.get();
+    }
+
+    /**
+     * Number of messages longer than the maximum length.
+     */
+    long getTruncatedMessageCount() {
+        return truncatedMessages.get();
+    }
+
+    /**
+     * Number of messages given up on because their time budget ran out.
+     */
+    long getTimedOutMessageCount() {
+        return timedOutMessages.get();
+    }
+
+    /**
+     * Collects the character classes that TracLinks are made of.
+     */
+    static int charClasses(String text) {
+        final int len = text.length();
+        int classes = 0;
+        for (int i=0; i<len; i++) {
+            char ch = text.charAt(i);
+            switch (ch) {
+            case '#':   classes |= HASH;    break;
+            case '[':   classes |= BRACKET; break;
+            case '{':   classes |= BRACE;   break;
+            case ':':   classes |= COLON;   break;
+            default:
+                if (ch>='0' && ch<='9') {
+                    classes |= DIGIT;
+                    if (i>0 && text.charAt(i-1)=='r')
+                        classes |= REV;
+                } else if (ch>='A' && ch<='Z' && i>0 && i+1<len
+                        && isLowerCase(text.charAt(i-1)) && isLowerCase(text.charAt(i+1))) {
+                    classes |= CAMEL;   // the second word of a CamelCase name
+                }
+            }
+        }
+        return classes;
+    }
+
+    private static boolean isLowerCase(char ch) {
+        return ch>='a' && ch<='z';
+    }
+
+    /**
+     * Same rule {@link hudson.MarkupText#findTokens(java.util.regex.Pattern)} applies.
+     */
+    private static boolean isWordBoundary(String text, int start, int end) {
+        if (start>0 && isLetterOrDigit(text.charAt(start-1)))
+            return false;
+        if (end<text.length() && isLetterOrDigit(text.charAt(end)))
+            return false;
+        return true;
+    }
+
+    private static boolean isLetterOrDigit(char ch) {
+        return Character.isLetter(ch) || Character.isDigit(ch);
+    }
+
+    /**
+     * The clock is looked at every this many + 1 positions.
+     */
+    private static final int TIME_CHECK_INTERVAL = 1023;
+
+    static final int HASH    = 1;
+    static final int BRACKET = 1<<1;
+    static final int BRACE   = 1<<2;
+    static final int COLON   = 1<<3;
+    static final int DIGIT   = 1<<4;
+    /**
+     * 'r' followed by a digit.
+     */
+    static final int REV     = 1<<5;
+    /**
+     * Upper case letter between two lower case letters.
+     */
+    static final int CAMEL   = 1<<6;
+
+}
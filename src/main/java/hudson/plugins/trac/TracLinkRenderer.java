@@ -0,0 +1,104 @@
+package hudson.plugins.trac;
+
+/**
+ * Renders the anchor tags for the {@link TracLinkSpan}s of one Trac website.
+ *
+ * <p>
+ * The website URL is bound once, and every tag is built in a buffer
+ * reused by all the tags a thread renders, so an instance is immutable
+ * and can be shared between threads.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TracLinkRenderer {
+    final String url;
+    private final String prefix;
+
+    /**
+     * @param url
+     *      {@link TracProjectProperty#tracWebsite}
+     */
+    TracLinkRenderer(String url) {
+        this.url = url;
+        this.prefix = "<a href='"+url;
+    }
+
+    /**
+     * Renders the start tag of the link for the given span of the message.
+     */
+    String startTag(String text, TracLinkSpan span) {
+        StringBuilder buf = BUFFER.get();
+        buf.setLength(0);
+        buf.append(prefix);
+        TracLinkAnnotator.MARKUPS[span.kind].appendHref(buf, text, span);
+        buf.append("'>");
+        return buf.toString();
+    }
+
+    /**
+     * Adds the status and summary of a ticket to the start tag of a link to it,
+     * striking it through if it is closed, the way Trac shows ticket links.
+     *
+     * @param startTag
+     *      rendered by {@link #startTag(String, TracLinkSpan)}.
+     */
+    static String ticketStartTag(String startTag, TracTicket ticket) {
+        StringBuilder buf = BUFFER.get();
+        buf.setLength(0);
+        buf.append(startTag, 0, startTag.length()-1);    // up to the closing '>'
+        String status = ticket.getStatus();
+        buf.append(" class='ticket");
+        if (status!=null) {
+            buf.append(' ');
+            for (int i=0; i<status.length(); i++) {
+                char ch = status.charAt(i);
+                if (Character.isLetterOrDigit(ch) || ch=='-' || ch=='_')
+                    buf.append(ch);
+            }
+        }
+        buf.append("' title='");
+        escape(buf, ticket.getSummary());
+        if (status!=null) {
+            buf.append(" (");
+            escape(buf, status);
+            String resolution = ticket.getResolution();
+            if (ticket.isClosed() && resolution!=null && resolution.length()>0) {
+                buf.append(": ");
+                escape(buf, resolution);
+            }
+            buf.append(')');
+        }
+        buf.append('\'');
+        if (ticket.isClosed())
+            buf.append(" style='text-decoration:line-through'");
+        return buf.append('>').toString();
+    }
+
+    /**
+     * Escapes text for an attribute value quoted with either quote.
+     */
+    private static void escape(StringBuilder buf, String text) {
+        if (text==null)
+            return;
+        for (int i=0; i<text.length(); i++) {
+            char ch = text.charAt(i);
+            switch (ch) {
+            case '&':   buf.append("&amp;");    break;
+            case '<':   buf.append("&lt;");     break;
+            case '>':   buf.append("&gt;");     break;
+            case '\'':  buf.append("&#39;");    break;
+            case '"':   buf.append("&quot;");   break;
+            default:    buf.append(ch);
+            }
+        }
+    }
+
+    static final String END_TAG = "</a>";
+
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(128);
+        }
+    };
+}
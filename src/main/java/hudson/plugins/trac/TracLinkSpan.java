@@ -0,0 +1,110 @@
+package hudson.plugins.trac;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.regex.MatchResult;
+
+/**
+ * One TracLink occurrence in a changelog message: the index of the
+ * {@link TracLinkAnnotator.LinkMarkup} that matched it, its character range
+ * and the character ranges of its capturing groups.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TracLinkSpan {
+    /**
+     * Index into {@link TracLinkAnnotator#MARKUPS}.
+     */
+    final int kind;
+    final int start;
+    final int end;
+    /**
+     * Start and end offset of every capturing group, -1 for groups that did not participate.
+     */
+    private final int[] groups;
+
+    TracLinkSpan(int kind, MatchResult m) {
+        this.kind = kind;
+        this.start = m.start();
+        this.end = m.end();
+        final int cnt = m.groupCount();
+        this.groups = new int[cnt*2];
+        for (int i=0; i<cnt; i++) {
+            groups[i*2  ] = m.start(i+1);
+            groups[i*2+1] = m.end(i+1);
+        }
+    }
+
+    private TracLinkSpan(int kind, int start, int end, int[] groups) {
+        this.kind = kind;
+        this.start = start;
+        this.end = end;
+        this.groups = groups;
+    }
+
+    /**
+     * Writes this span in the format {@link #read(DataInput)} reads.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeByte(kind);
+        out.writeInt(start);
+        out.writeInt(end);
+        out.writeByte(groups.length);
+        for (int g : groups)
+            out.writeInt(g);
+    }
+
+    static TracLinkSpan read(DataInput in) throws IOException {
+        int kind = in.readUnsignedByte();
+        int start = in.readInt();
+        int end = in.readInt();
+        int[] groups = new int[in.readUnsignedByte()];
+        for (int i=0; i<groups.length; i++)
+            groups[i] = in.readInt();
+        return new TracLinkSpan(kind, start, end, groups);
+    }
+
+    /**
+     * Whether this span could have been found in a message of the given length.
+     */
+    boolean fits(int length) {
+        if (start<0 || start>end || end>length)
+            return false;
+        for (int g : groups)
+            if (g>length)
+                return false;
+        return true;
+    }
+
+    /**
+     * Number of capturing groups of the markup that matched.
+     */
+    int groupCount() {
+        return groups.length/2;
+    }
+
+    /**
+     * Gets the text of the given group, the same way {@link MatchResult#group(int)} does.
+     *
+     * @return null if the group did not participate in the match.
+     */
+    String group(String text, int n) {
+        if (n==0)
+            return text.substring(start, end);
+        if (n>groupCount() || groups[n*2-2]<0)
+            return null;
+        return text.substring(groups[n*2-2], groups[n*2-1]);
+    }
+
+    /**
+     * Appends the text of the given group, if it participated in the match,
+     * without creating an intermediate string.
+     */
+    void appendGroup(StringBuilder buf, String text, int n) {
+        if (n==0)
+            buf.append(text, start, end);
+        else if (n<=groupCount() && groups[n*2-2]>=0)
+            buf.append(text, groups[n*2-2], groups[n*2-1]);
+    }
+}
@@ -0,0 +1,304 @@
+package hudson.plugins.trac;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.scm.ChangeLogSet.Entry;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@link TracLinkSpan}s of all the changelog messages of a build, stored
+ * in the build directory when the build completes, so that viewing its changes
+ * only needs to merge them into the page.
+ *
+ * <p>
+ * The file starts with a format version, a fingerprint of
+ * {@link TracLinkAnnotator#MARKUPS} and the hash of the
+ * {@link TracProjectProperty#tracWebsite} it was made for, and is recomputed
+ * when any of them doesn't match. Then, for every message, its hash, its length
+ * and its spans follow.
+ *
+ * <p>
+ * Files that are missing or stale when the changes are viewed, such as those of
+ * the builds made before the plugin was upgraded, are written in the background,
+ * so the page is annotated as if there were none until they are.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TracLinkSpanFile {
+    /**
+     * Spans by {@link #key(String)} of the message.
+     * {@link #AMBIGUOUS} if different messages of the build have the same key.
+     */
+    private final Map<Long,TracLinkSpan[]> spans;
+    private final int urlHash;
+
+    private TracLinkSpanFile(Map<Long,TracLinkSpan[]> spans, int urlHash) {
+        this.spans = spans;
+        this.urlHash = urlHash;
+    }
+
+    /**
+     * Gets the spans of the given message.
+     *
+     * @return null if the message isn't known.
+     */
+    List<TracLinkSpan> get(String message) {
+        TracLinkSpan[] s = spans.get(key(message));
+        if (s==null || s==AMBIGUOUS)
+            return null;
+        return Arrays.asList(s);
+    }
+
+    /**
+     * Finds the spans of the given changelog messages.
+     */
+    static TracLinkSpanFile compute(Iterable<? extends Entry> changes, String url) {
+        return compute(changes, url, 0);
+    }
+
+    /**
+     * Finds the spans of the given changelog messages, leaving out
+     * those that take longer than the given time.
+     *
+     * @param budgetNanos
+     *      Time to spend on each message, 0 or less for no limit.
+     */
+    static TracLinkSpanFile compute(Iterable<? extends Entry> changes, String url, long budgetNanos) {
+        Map<Long,TracLinkSpan[]> spans = new HashMap<Long,TracLinkSpan[]>();
+        Map<Long,String> messages = new HashMap<Long,String>();
+        for (Entry e : changes) {
+            String msg = e.getMsg();
+            if (msg==null)
+                continue;
+            Long key = key(msg);
+            String other = messages.put(key, msg);
+            if (other!=null) {
+                if (!other.equals(msg))
+                    spans.put(key, AMBIGUOUS);
+                continue;
+            }
+            List<TracLinkSpan> found = TracLinkAnnotator.MATCHER.find(msg, budgetNanos);
+            if (found==null)
+                continue;   // unknown, so that it is annotated within the budget of each page request
+            spans.put(key, found.toArray(new TracLinkSpan[found.size()]));
+        }
+        return new TracLinkSpanFile(spans, url.hashCode());
+    }
+
+    void save(File dir) throws IOException {
+        File tmp = new File(dir, FILE_NAME+".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(GRAMMAR);
+            out.writeInt(urlHash);
+            out.writeInt(spans.size());
+            for (Map.Entry<Long,TracLinkSpan[]> e : spans.entrySet()) {
+                out.writeLong(e.getKey());
+                TracLinkSpan[] s = e.getValue();
+                if (s==AMBIGUOUS) {
+                    out.writeInt(-1);
+                    continue;
+                }
+                out.writeInt(s.length);
+                for (TracLinkSpan span : s)
+                    span.write(out);
+            }
+        } finally {
+            out.close();
+        }
+        File file = new File(dir, FILE_NAME);
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("Failed to rename "+tmp+" to "+file);
+        }
+    }
+
+    /**
+     * @return null if the directory has no span file, or one for another configuration.
+     */
+    static TracLinkSpanFile load(File dir, String url) throws IOException {
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists())
+            return null;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt()!=FORMAT_VERSION || in.readInt()!=GRAMMAR || in.readInt()!=url.hashCode())
+                return null;    // stale
+            int size = in.readInt();
+            Map<Long,TracLinkSpan[]> spans = new HashMap<Long,TracLinkSpan[]>(size*4/3+1);
+            for (int i=0; i<size; i++) {
+                long key = in.readLong();
+                int n = in.readInt();
+                if (n<0) {
+                    spans.put(key, AMBIGUOUS);
+                    continue;
+                }
+                int length = (int)key;
+                TracLinkSpan[] s = new TracLinkSpan[n];
+                for (int j=0; j<n; j++) {
+                    s[j] = TracLinkSpan.read(in);
+                    if (s[j].kind>=TracLinkAnnotator.MARKUPS.length || !s[j].fits(length))
+                        throw new IOException("Corrupted "+file);
+                }
+                spans.put(key, s);
+            }
+            return new TracLinkSpanFile(spans, url.hashCode());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gets the spans of a completed build for the given website.
+     * If they are missing or stale, they are computed and stored
+     * in the background, without waiting for them.
+     *
+     * @return null if the build is still running, or the spans can't be read or aren't stored yet.
+     */
+    static TracLinkSpanFile of(AbstractBuild<?,?> build, String url) {
+        if (build.isBuilding())
+            return null;    // the changelog may not be complete yet
+        File dir = build.getRootDir();
+        synchronized (LOADED) {
+            TracLinkSpanFile f = LOADED.get(dir);
+            if (f!=null && f.urlHash==url.hashCode())
+                return f;
+        }
+
+        TracLinkSpanFile f;
+        try {
+            f = load(dir, url);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the Trac links of "+build, e);
+            return null;
+        }
+        if (f==null) {
+            store(build, url);
+            return null;
+        }
+        synchronized (LOADED) {
+            LOADED.put(dir, f);
+        }
+        return f;
+    }
+
+    /**
+     * Computes and stores the spans of a build in the background, unless that is already pending.
+     */
+    private static void store(final AbstractBuild<?,?> build, final String url) {
+        final File dir = build.getRootDir();
+        synchronized (STORING) {
+            if (!STORING.add(dir))
+                return;
+        }
+        WRITER.execute(new Runnable() {
+            public void run() {
+                try {
+                    TracLinkSpanFile f = compute(build.getChangeSet(), url, TracLinkAnnotator.TIME_BUDGET*1000000L);
+                    f.save(dir);
+                    synchronized (LOADED) {
+                        LOADED.put(dir, f);
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to store the Trac links of "+build, e);
+                } finally {
+                    synchronized (STORING) {
+                        STORING.remove(dir);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stores the spans of every build of a project with a Trac website when it completes.
+     */
+    @Extension
+    public static final class ListenerImpl extends RunListener<AbstractBuild<?,?>> {
+        @Override
+        public void onCompleted(AbstractBuild<?,?> build, TaskListener listener) {
+            TracProjectProperty tpp = TracProjectProperty.of(build.getProject());
+            if(tpp==null)
+                return; // not configured
+            try {
+                compute(build.getChangeSet(), tpp.tracWebsite).save(build.getRootDir());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to store the Trac links of "+build, e);
+            }
+        }
+    }
+
+    /**
+     * The hash and the length of a message; the length keeps the spans
+     * of a colliding message from pointing past its end.
+     */
+    private static long key(String message) {
+        return ((long)message.hashCode()<<32) | message.length();
+    }
+
+    static final String FILE_NAME = "trac-links.bin";
+
+    /**
+     * Changed whenever the layout of the file changes.
+     */
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * Fingerprint of the markup patterns and the maximum message length,
+     * so that spans are recomputed when they change.
+     */
+    private static final int GRAMMAR;
+    static {
+        StringBuilder buf = new StringBuilder().append(TracLinkAnnotator.MAX_MESSAGE_LENGTH).append('\n');
+        for (TracLinkAnnotator.LinkMarkup m : TracLinkAnnotator.MARKUPS)
+            buf.append(m.pattern.pattern()).append('\n');
+        GRAMMAR = buf.toString().hashCode();
+    }
+
+    private static final TracLinkSpan[] AMBIGUOUS = new TracLinkSpan[0];
+
+    /**
+     * Recently used span files by build directory.
+     */
+    private static final Map<File,TracLinkSpanFile> LOADED = new LinkedHashMap<File,TracLinkSpanFile>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File,TracLinkSpanFile> eldest) {
+            return size()>32;
+        }
+    };
+
+    /**
+     * Build directories whose span files are being written by {@link #WRITER}.
+     */
+    private static final Set<File> STORING = new HashSet<File>();
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+
+    private static final Logger LOGGER = Logger.getLogger(TracLinkSpanFile.class.getName());
+}
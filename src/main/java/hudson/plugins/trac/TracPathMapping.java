@@ -0,0 +1,36 @@
+package hudson.plugins.trac;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Maps the changeset paths under a prefix to a path of the Trac source
+ * repository browser, for repositories with several module roots that Trac
+ * knows under different paths.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class TracPathMapping {
+    /**
+     * Stripped from the changeset paths that start with it.
+     */
+    public final String prefix;
+
+    /**
+     * Appended to the Trac source repository browser URL before the stripped path.
+     * Normalized like {@link TracProjectProperty#tracAppendedToBrowserURL}:
+     * null if empty, otherwise ending with '/'.
+     */
+    public final String browserPath;
+
+    @DataBoundConstructor
+    public TracPathMapping(String prefix, String browserPath) {
+        if(browserPath==null || browserPath.length()==0)
+            browserPath=null;
+        else {
+            if(!browserPath.endsWith("/"))
+                browserPath += '/';
+        }
+        this.prefix = prefix==null ? "" : prefix;
+        this.browserPath = browserPath;
+    }
+}
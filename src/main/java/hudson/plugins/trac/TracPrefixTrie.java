@@ -0,0 +1,104 @@
+package hudson.plugins.trac;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable trie that finds the longest of a set of prefixes a string starts with,
+ * in time proportional to the length of that prefix rather than to the number
+ * of prefixes.
+ *
+ * <p>
+ * The children of every node are kept as a sorted array of characters, so a
+ * lookup is a binary search per character.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TracPrefixTrie<V> {
+    private final Node<V> root;
+
+    /**
+     * @param values
+     *      Values by prefix.
+     */
+    TracPrefixTrie(Map<String,? extends V> values) {
+        Builder<V> b = new Builder<V>();
+        for (Map.Entry<String,? extends V> e : values.entrySet()) {
+            Builder<V> n = b;
+            String prefix = e.getKey();
+            for (int i=0; i<prefix.length(); i++) {
+                Builder<V> child = n.children.get(prefix.charAt(i));
+                if (child==null)
+                    n.children.put(prefix.charAt(i), child = new Builder<V>());
+                n = child;
+            }
+            n.value = e.getValue();
+        }
+        root = b.compile();
+    }
+
+    /**
+     * Gets the value of the longest prefix of the given string.
+     *
+     * @return null if the string starts with none of the prefixes.
+     */
+    V longestPrefixOf(String s) {
+        Node<V> n = root;
+        V best = n.value;
+        for (int i=0; i<s.length(); i++) {
+            n = n.child(s.charAt(i));
+            if (n==null)
+                break;
+            if (n.value!=null)
+                best = n.value;
+        }
+        return best;
+    }
+
+    private static final class Node<V> {
+        private final char[] labels;
+        private final Node<V>[] children;
+        private final V value;
+
+        Node(char[] labels, Node<V>[] children, V value) {
+            this.labels = labels;
+            this.children = children;
+            this.value = value;
+        }
+
+        Node<V> child(char ch) {
+            int lo = 0, hi = labels.length-1;
+            while (lo<=hi) {
+                int mid = (lo+hi)>>>1;
+                char label = labels[mid];
+                if (label<ch)
+                    lo = mid+1;
+                else if (label>ch)
+                    hi = mid-1;
+                else
+                    return children[mid];
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Mutable node the trie is built with, before it is compiled into arrays.
+     */
+    private static final class Builder<V> {
+        private final TreeMap<Character,Builder<V>> children = new TreeMap<Character,Builder<V>>();
+        private V value;
+
+        @SuppressWarnings("unchecked")
+        Node<V> compile() {
+            char[] labels = new char[children.size()];
+            Node<V>[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character,Builder<V>> e : children.entrySet()) {
+                labels[i] = e.getKey();
+                nodes[i++] = e.getValue().compile();
+            }
+            return new Node<V>(labels, nodes, value);
+        }
+    }
+}
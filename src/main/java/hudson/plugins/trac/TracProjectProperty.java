@@ -1,16 +1,39 @@
 package hudson.plugins.trac;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import hudson.Extension;
+import hudson.XmlFile;
 import hudson.model.AbstractProject;
 import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
 import hudson.model.Action;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.FormValidation;
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
 import net.sf.json.JSONObject;
 
 /**
@@ -40,21 +63,61 @@ public final class TracProjectProperty extends JobProperty<AbstractProject<?,?>>
      */
     public final String tracAppendedToBrowserURL;
 
+    /**
+     * Additional mappings of changeset path prefixes to browser paths,
+     * for the paths that {@link #tracStrippedFromChangesetPath} doesn't cover.
+     * Null in the configurations saved before they existed.
+     */
+    private final List<TracPathMapping> pathMappings;
+
+    /**
+     * The shared {@link TracSite} of {@link #tracWebsite}, null if this is not configured yet.
+     */
+    private transient final TracSite site;
+
+    /**
+     * Trac repositories by the URLs of the SCMs that link to them,
+     * for Trac sites hosting several repositories.
+     * Null in the configurations saved before they existed.
+     */
+    private final List<TracRepository> repositories;
+
+    /**
+     * Whether ticket links show the status and summary of their ticket,
+     * as fetched through the XML-RPC interface of the Trac website.
+     */
+    public final boolean showTicketStatus;
+
+    private transient volatile TracPrefixTrie<TracPathMapping> pathTrie;
+
+    private transient volatile TracPrefixTrie<TracRepository> repositoryTrie;
+
     
     @Deprecated
     public TracProjectProperty(String tracWebsite) {
         this(tracWebsite, null, null);
     }
 
-    @DataBoundConstructor
     public TracProjectProperty(String tracWebsite, String tracStrippedFromChangesetPath, String tracAppendedToBrowserURL) {
-        // normalize
-        if(tracWebsite==null || tracWebsite.length()==0)
-            tracWebsite=null;
-        else {
-            if(!tracWebsite.endsWith("/"))
-                tracWebsite += '/';
-        }
+        this(tracWebsite, tracStrippedFromChangesetPath, tracAppendedToBrowserURL, null, null);
+    }
+
+    public TracProjectProperty(String tracWebsite, String tracStrippedFromChangesetPath, String tracAppendedToBrowserURL,
+            List<TracPathMapping> pathMappings) {
+        this(tracWebsite, tracStrippedFromChangesetPath, tracAppendedToBrowserURL, pathMappings, null);
+    }
+
+    public TracProjectProperty(String tracWebsite, String tracStrippedFromChangesetPath, String tracAppendedToBrowserURL,
+            List<TracPathMapping> pathMappings, List<TracRepository> repositories) {
+        this(tracWebsite, tracStrippedFromChangesetPath, tracAppendedToBrowserURL, pathMappings, repositories, false);
+    }
+
+    @DataBoundConstructor
+    public TracProjectProperty(String tracWebsite, String tracStrippedFromChangesetPath, String tracAppendedToBrowserURL,
+            List<TracPathMapping> pathMappings, List<TracRepository> repositories, boolean showTicketStatus) {
+        // normalize, and share the site with the other projects linking to it
+        TracSite site = DescriptorImpl.getSite(tracWebsite);
+        tracWebsite = site==null ? null : site.url;
         if(tracStrippedFromChangesetPath==null || tracStrippedFromChangesetPath.length()==0)
         	tracStrippedFromChangesetPath=null;
         if(tracAppendedToBrowserURL==null || tracAppendedToBrowserURL.length()==0)
@@ -64,23 +127,370 @@ public final class TracProjectProperty extends JobProperty<AbstractProject<?,?>>
             	tracAppendedToBrowserURL += '/';
         }
         this.tracWebsite = tracWebsite;
+        this.site = site;
         this.tracStrippedFromChangesetPath = tracStrippedFromChangesetPath;
         this.tracAppendedToBrowserURL = tracAppendedToBrowserURL;
+        this.pathMappings = pathMappings==null ? Collections.<TracPathMapping>emptyList()
+                : Collections.unmodifiableList(new ArrayList<TracPathMapping>(pathMappings));
+        this.repositories = repositories==null ? Collections.<TracRepository>emptyList()
+                : Collections.unmodifiableList(new ArrayList<TracRepository>(repositories));
+        this.showTicketStatus = showTicketStatus;
+    }
+
+    public List<TracPathMapping> getPathMappings() {
+        if(pathMappings==null)
+            return Collections.emptyList();
+        return pathMappings;
+    }
+
+    /**
+     * Gets all the path mappings by prefix, including the one made of
+     * {@link #tracStrippedFromChangesetPath} and {@link #tracAppendedToBrowserURL},
+     * compiled once for all the links made from this configuration.
+     * A prefix configured twice maps to its last mapping.
+     */
+    TracPrefixTrie<TracPathMapping> getPathTrie() {
+        TracPrefixTrie<TracPathMapping> t = pathTrie;
+        if (t==null) {
+            Map<String,TracPathMapping> byPrefix = new LinkedHashMap<String,TracPathMapping>();
+            if(tracStrippedFromChangesetPath!=null)
+                byPrefix.put(tracStrippedFromChangesetPath, new TracPathMapping(tracStrippedFromChangesetPath, tracAppendedToBrowserURL));
+            for (TracPathMapping m : getPathMappings())
+                byPrefix.put(m.prefix, m);
+            pathTrie = t = new TracPrefixTrie<TracPathMapping>(byPrefix);
+        }
+        return t;
+    }
+
+    /**
+     * Goes through the constructor for the configurations loaded from disk,
+     * so that they share their {@link TracSite} with the other projects too.
+     */
+    private Object readResolve() {
+        return new TracProjectProperty(tracWebsite, tracStrippedFromChangesetPath, tracAppendedToBrowserURL, pathMappings, repositories, showTicketStatus);
+    }
+
+    /**
+     * Gets the shared {@link TracSite} of {@link #tracWebsite}.
+     *
+     * @return null if this is not configured yet.
+     */
+    public TracSite getSite() {
+        return site;
+    }
+
+    /**
+     * Gets the {@link TracLinkBuilder} for {@link #tracWebsite}, which is
+     * only parsed once for all the projects linking to the same site.
+     */
+    TracLinkBuilder getLinkBuilder() throws MalformedURLException {
+        if (site==null)
+            throw new MalformedURLException("No Trac website configured");
+        return site.getLinkBuilder();
+    }
+
+    public List<TracRepository> getRepositories() {
+        if(repositories==null)
+            return Collections.emptyList();
+        return repositories;
+    }
+
+    /**
+     * Gets the name of the Trac repository that the given SCM URLs belong to,
+     * going by the longest configured URL prefix of the first URL that has one.
+     *
+     * @return null for the default repository.
+     */
+    String getRepositoryName(Collection<String> scmUrls) {
+        if(getRepositories().isEmpty())
+            return null;
+        TracPrefixTrie<TracRepository> t = repositoryTrie;
+        if (t==null) {
+            Map<String,TracRepository> byUrl = new LinkedHashMap<String,TracRepository>();
+            for (TracRepository r : getRepositories())
+                byUrl.put(r.scmUrl, r);
+            repositoryTrie = t = new TracPrefixTrie<TracRepository>(byUrl);
+        }
+        for (String url : scmUrls) {
+            if(url==null)
+                continue;
+            TracRepository r = t.longestPrefixOf(url.endsWith("/") ? url : url+'/');
+            if(r!=null)
+                return r.name;
+        }
+        return null;
     }
 
     @Override
     public Collection<? extends Action> getJobActions(AbstractProject<?,?> job) {
-        return Collections.singletonList(new TracLinkAction(this));
+        Action link = site==null ? new TracLinkAction(this) : site.getAction();
+        return Arrays.asList(link, new TracTicketIndexAction(job));
     }
 
+    /**
+     * Incremented whenever a project is saved, and with it possibly its property,
+     * so that what was derived from the old properties is recomputed.
+     */
+    static final AtomicInteger GENERATION = new AtomicInteger();
+
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Item || o instanceof DescriptorImpl)
+                GENERATION.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the Trac configuration that applies to a job: its own, else the one
+     * of the closest enclosing job, such as the matrix project of a matrix
+     * configuration, else the global default.
+     *
+     * <p>
+     * Only jobs nest configurations: item groups that aren't jobs, such as
+     * folders, have no {@link JobProperty} to hold one, and are passed through.
+     *
+     * <p>
+     * The result is kept until any configuration is saved again, so that the
+     * enclosing jobs are not looked at for every link and every changelog line.
+     *
+     * @return null if no Trac website applies to the job.
+     */
+    public static TracProjectProperty of(Job<?,?> job) {
+        return of(job, JOBS);
+    }
+
+    /**
+     * Gets the configuration that applies to an item, as found in the given configurations.
+     */
+    static TracProjectProperty of(Item job, Configurations configurations) {
+        int generation = GENERATION.get();
+        synchronized (RESOLVED) {
+            Resolution r = RESOLVED.get(job);
+            if (r!=null && r.generation==generation) {
+                if (r.property==null)
+                    return null;
+                TracProjectProperty tpp = r.property.get();
+                if (tpp!=null)
+                    return tpp;
+            }
+        }
+        TracProjectProperty tpp = resolve(job, configurations);
+        synchronized (RESOLVED) {
+            RESOLVED.put(job, new Resolution(tpp, generation));
+        }
+        return tpp;
+    }
+
+    private static TracProjectProperty resolve(Item job, Configurations configurations) {
+        TracProjectProperty tpp = configurations.of(job);
+        for (ItemGroup<?> g = job.getParent(); tpp==null && g instanceof Item; g = ((Item)g).getParent())
+            tpp = configurations.of((Item)g);
+        if (tpp==null)
+            tpp = configurations.getDefault();
+        if (tpp!=null && tpp.tracWebsite==null)
+            tpp = null;
+        return tpp;
+    }
+
+    /**
+     * Where {@link #of(Item, Configurations)} finds the configurations.
+     */
+    interface Configurations {
+        /**
+         * Gets the configuration an item has of its own.
+         *
+         * @return null if it has none, or can't have one.
+         */
+        TracProjectProperty of(Item item);
+
+        /**
+         * Gets the configuration of the jobs that neither have nor inherit one.
+         *
+         * @return null if there is none.
+         */
+        TracProjectProperty getDefault();
+    }
+
+    /**
+     * The configurations of the jobs, and the global default.
+     */
+    static final Configurations JOBS = new Configurations() {
+        public TracProjectProperty of(Item item) {
+            return item instanceof Job ? ((Job<?,?>)item).getProperty(TracProjectProperty.class) : null;
+        }
+
+        public TracProjectProperty getDefault() {
+            Hudson h = Hudson.getInstance();
+            DescriptorImpl d = h==null ? null : h.getDescriptorByType(DescriptorImpl.class);
+            return d==null ? null : d.getDefault();
+        }
+    };
+
+    /**
+     * What {@link #of(Item, Configurations)} found for a job, and the {@link #GENERATION} it found it in.
+     */
+    private static final class Resolution {
+        /**
+         * Weak, as the property refers to its owner, which may be the very job
+         * this is kept for in {@link #RESOLVED}: holding it would keep the job
+         * from ever being collected. The owner holds the property as long as it
+         * is in use. Null if no Trac website applies.
+         */
+        final WeakReference<TracProjectProperty> property;
+        final int generation;
+
+        Resolution(TracProjectProperty property, int generation) {
+            this.property = property==null ? null : new WeakReference<TracProjectProperty>(property);
+            this.generation = generation;
+        }
+    }
+
+    private static final Map<Item,Resolution> RESOLVED = new WeakHashMap<Item,Resolution>();
+
     @Extension
     public static final class DescriptorImpl extends JobPropertyDescriptor {
         // no longer in use but kept for backward compatibility
         private transient String tracWebsite;
 
+        /**
+         * Trac websites configured globally, offered to every project.
+         */
+        private volatile List<TracSite> sites = Collections.emptyList();
+
+        /**
+         * Trac website of the jobs that neither have nor inherit one, null if there is none.
+         */
+        private volatile String defaultWebsite;
+
+        private transient volatile TracProjectProperty defaultProperty;
+
+        /**
+         * Whether the tickets referred to by the builds of all the jobs are also
+         * indexed together, besides the index of every job.
+         */
+        private volatile boolean globalTicketIndex;
+
+        /**
+         * Every {@link TracSite} in use, by URL, so that the projects linking to
+         * the same website share one instance and what is derived from it.
+         *
+         * <p>
+         * The sites are only held by the properties and the global configuration
+         * linking to them, so that a site none of them links to any more is dropped,
+         * together with its tickets in {@link #TICKETS}.
+         */
+        private static final ConcurrentMap<String,SiteRef> SITES = new ConcurrentHashMap<String,SiteRef>();
+
+        /**
+         * Where the references of the dropped {@link #SITES} show up.
+         */
+        private static final ReferenceQueue<TracSite> DROPPED = new ReferenceQueue<TracSite>();
+
+        private static final class SiteRef extends WeakReference<TracSite> {
+            final String url;
+
+            SiteRef(TracSite site) {
+                super(site, DROPPED);
+                this.url = site.url;
+            }
+        }
+
         public DescriptorImpl() {
             super(TracProjectProperty.class);
             load();
+            sites = intern(sites==null ? Collections.<TracSite>emptyList() : sites);
+        }
+
+        /**
+         * Gets the shared site of a Trac website URL, registering it on first use.
+         *
+         * @return null if the URL is empty.
+         */
+        static TracSite getSite(String url) {
+            url = TracSite.normalize(url);
+            if (url==null)
+                return null;
+            expunge();
+            while (true) {
+                SiteRef ref = SITES.get(url);
+                TracSite site = ref==null ? null : ref.get();
+                if (site!=null)
+                    return site;
+                site = new TracSite(url);
+                SiteRef created = new SiteRef(site);
+                if (ref==null ? SITES.putIfAbsent(url, created)==null : SITES.replace(url, ref, created))
+                    return site;
+            }
+        }
+
+        /**
+         * Forgets the sites that were dropped, unless their URL is in use again.
+         */
+        private static void expunge() {
+            Reference<? extends TracSite> r;
+            while ((r=DROPPED.poll())!=null) {
+                SiteRef ref = (SiteRef)r;
+                if (SITES.remove(ref.url, ref))
+                    TICKETS.removeSite(ref.url);
+            }
+        }
+
+        /**
+         * Replaces the given sites by the shared ones of their URLs,
+         * giving those the credentials they were configured with.
+         */
+        private static List<TracSite> intern(List<TracSite> sites) {
+            List<TracSite> r = new ArrayList<TracSite>(sites.size());
+            for (TracSite s : sites) {
+                TracSite site = s==null ? null : getSite(s.url);
+                if (site!=null && !r.contains(site)) {
+                    site.setCredentials(s);
+                    r.add(site);
+                }
+            }
+            return Collections.unmodifiableList(r);
+        }
+
+        public List<TracSite> getSites() {
+            return sites;
+        }
+
+        public String getDefaultWebsite() {
+            return defaultWebsite;
+        }
+
+        public boolean isGlobalTicketIndex() {
+            return globalTicketIndex;
+        }
+
+        /**
+         * Gets the configuration of the jobs that neither have nor inherit one.
+         *
+         * @return null if there is no default website.
+         */
+        TracProjectProperty getDefault() {
+            TracProjectProperty tpp = defaultProperty;
+            if (tpp==null && defaultWebsite!=null)
+                defaultProperty = tpp = new TracProjectProperty(defaultWebsite, null, null);
+            return tpp;
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            Object sites = json.get("sites");
+            List<TracSite> old = this.sites;
+            this.sites = intern(sites==null ? Collections.<TracSite>emptyList() : req.bindJSONToList(TracSite.class, sites));
+            for (TracSite s : old)
+                if (!this.sites.contains(s))
+                    s.setCredentials(null);     // no longer configured, so called anonymously
+            this.defaultWebsite = TracSite.normalize(json.getString("defaultWebsite"));
+            this.defaultProperty = null;
+            this.globalTicketIndex = json.optBoolean("globalTicketIndex");
+            save();
+            GENERATION.incrementAndGet();
+            return true;
         }
 
         @Override
@@ -92,6 +502,59 @@ public final class TracProjectProperty extends JobProperty<AbstractProject<?,?>>
             return "Associated Trac website";
         }
 
+        /**
+         * Checks that the Trac website answers.
+         *
+         * @param item
+         *      The job being configured, null on the global configuration page.
+         */
+        public FormValidation doCheckTracWebsite(@AncestorInPath Item item, @QueryParameter String value) {
+            if (item!=null)
+                item.checkPermission(Item.CONFIGURE);
+            else
+                Hudson.getInstance().checkPermission(Item.CONFIGURE);
+            String url = TracSite.normalize(value==null ? null : value.trim());
+            if (url==null)
+                return FormValidation.ok();
+            try {
+                return CHECKER.check(new URL(url));
+            } catch (MalformedURLException e) {
+                return FormValidation.error("Not a valid URL: "+e.getMessage());
+            }
+        }
+
+        /**
+         * Connect and read timeout of the website check, in milliseconds.
+         */
+        public static final int CHECK_TIMEOUT = Integer.getInteger(TracProjectProperty.class.getName()+".checkTimeout", 5000);
+
+        /**
+         * How long the outcome of a website check is remembered, in milliseconds.
+         */
+        public static final long CHECK_TTL = Long.getLong(TracProjectProperty.class.getName()+".checkTtl", 5*60*1000L);
+
+        /**
+         * Checks the websites typed into the configuration pages.
+         */
+        private static final TracUrlChecker CHECKER = new TracUrlChecker(CHECK_TIMEOUT, CHECK_TTL);
+
+        /**
+         * Most tickets kept in memory.
+         */
+        public static final int TICKET_CACHE_SIZE = Integer.getInteger(TracProjectProperty.class.getName()+".ticketCacheSize", 10000);
+
+        /**
+         * How long a ticket fetched from Trac is fresh, and how long it is
+         * shown at all while it is fetched again, in milliseconds.
+         */
+        public static final long TICKET_TTL = Long.getLong(TracProjectProperty.class.getName()+".ticketTtl", 5*60*1000L);
+        public static final long TICKET_MAX_STALE = Long.getLong(TracProjectProperty.class.getName()+".ticketMaxStale", 24*60*60*1000L);
+
+        /**
+         * Tickets of all the sites, as fetched from Trac.
+         */
+        static final TracTicketCache TICKETS = new TracTicketCache(TICKET_CACHE_SIZE, TICKET_TTL, TICKET_MAX_STALE, TracTicketCache.RPC);
+
         @Override
         public JobProperty<?> newInstance(StaplerRequest req, JSONObject formData) throws FormException {
             TracProjectProperty tpp = req.bindJSON(TracProjectProperty.class,formData);
@@ -0,0 +1,167 @@
+package hudson.plugins.trac;
+
+import hudson.scm.ChangeLogSet.Entry;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The tickets, changesets, reports and milestones of the local Trac that
+ * changelog messages refer to.
+ *
+ * <p>
+ * References are found with the same grammar {@link TracLinkAnnotator} links,
+ * so a message refers to exactly the tickets it shows links to, whether written
+ * as <tt>#123</tt>, <tt>ticket:123</tt> or <tt>comment:ticket:123:4</tt>.
+ * InterTrac links refer to other Tracs and are left out.
+ *
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class TracReferences {
+    private final IntSet tickets = new IntSet();
+    private final IntSet changesets = new IntSet();
+    private final IntSet reports = new IntSet();
+    private final TreeSet<String> milestones = new TreeSet<String>();
+
+    /**
+     * Collects the references of all the messages of a changelog.
+     */
+    public static TracReferences of(Iterable<? extends Entry> changes) {
+        TracReferences r = new TracReferences();
+        for (Entry e : changes)
+            r.add(e.getMsg());
+        return r;
+    }
+
+    /**
+     * Collects the references of a message.
+     *
+     * @param message
+     *      may be null.
+     * @return this
+     */
+    public TracReferences add(String message) {
+        if (message==null)
+            return this;
+        List<TracLinkSpan> spans = TracLinkAnnotator.MATCHER.find(message);
+        for (int i=0; i<spans.size(); i++) {
+            TracLinkSpan span = spans.get(i);
+            switch (span.kind) {
+            case TracLinkAnnotator.TICKET:
+            case TracLinkAnnotator.TICKET_COMMENT:
+                addNumber(tickets, message, span);
+                break;
+            case TracLinkAnnotator.CHANGESET:
+                addNumber(changesets, message, span);
+                break;
+            case TracLinkAnnotator.REPORT:
+                addNumber(reports, message, span);
+                break;
+            case TracLinkAnnotator.MILESTONE:
+                milestones.add(span.group(message, 1));
+                break;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Adds the number in the first group of the span that participated in the match,
+     * unless it is too large to be an id.
+     */
+    private static void addNumber(IntSet set, String text, TracLinkSpan span) {
+        int n = number(text, span);
+        if (n>=0)
+            set.add(n);
+    }
+
+    /**
+     * Gets the number in the first group of the span that participated in the match.
+     *
+     * @return -1 if it is too large to be an id.
+     */
+    static int number(String text, TracLinkSpan span) {
+        for (int g=1; g<=span.groupCount(); g++) {
+            String digits = span.group(text, g);
+            if (digits==null)
+                continue;
+            int n = 0;
+            for (int i=0; i<digits.length(); i++) {
+                int d = digits.charAt(i)-'0';
+                if (n>(Integer.MAX_VALUE-d)/10)
+                    return -1;
+                n = n*10+d;
+            }
+            return n;
+        }
+        return -1;
+    }
+
+    /**
+     * Ticket numbers, in ascending order without duplicates.
+     */
+    public int[] getTickets() {
+        return tickets.toArray();
+    }
+
+    /**
+     * Changeset revisions, in ascending order without duplicates.
+     */
+    public int[] getChangesets() {
+        return changesets.toArray();
+    }
+
+    /**
+     * Report numbers, in ascending order without duplicates.
+     */
+    public int[] getReports() {
+        return reports.toArray();
+    }
+
+    /**
+     * Milestone names, in ascending order without duplicates.
+     */
+    public String[] getMilestones() {
+        return milestones.toArray(new String[milestones.size()]);
+    }
+
+    public boolean isEmpty() {
+        return tickets.size==0 && changesets.size==0 && reports.size==0 && milestones.isEmpty();
+    }
+
+    /**
+     * Set of non-negative ints, kept sorted and unique on demand.
+     */
+    private static final class IntSet {
+        private int[] values = new int[8];
+        private int size;
+        private boolean sorted = true;
+
+        void add(int v) {
+            if (size>0 && values[size-1]==v)
+                return; // the same ticket mentioned twice in a row
+            if (size==values.length)
+                values = Arrays.copyOf(values, size*2);
+            if (size>0 && values[size-1]>v)
+                sorted = false;
+            values[size++] = v;
+        }
+
+        int[] toArray() {
+            if (!sorted) {
+                Arrays.sort(values, 0, size);
+                int n = 0;
+                for (int i=0; i<size; i++)
+                    if (n==0 || values[n-1]!=values[i])
+                        values[n++] = values[i];
+                size = n;
+                sorted = true;
+            }
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
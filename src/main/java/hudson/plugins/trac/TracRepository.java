@@ -0,0 +1,38 @@
+package hudson.plugins.trac;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Maps the SCM URLs under a prefix to one of the repositories of a Trac site
+ * hosting several, which Trac 0.12 and later link to as
+ * <tt>browser/<i>name</i>/...</tt> and <tt>changeset/<i>rev</i>/<i>name</i></tt>.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class TracRepository {
+    /**
+     * Subversion repository URL or Git remote URL, or a prefix of them.
+     * This value is normalized and therefore it always ends with '/'.
+     */
+    public final String scmUrl;
+
+    /**
+     * Name of the repository in Trac, without leading or trailing '/'.
+     * Null for the default repository.
+     */
+    public final String name;
+
+    @DataBoundConstructor
+    public TracRepository(String scmUrl, String name) {
+        scmUrl = scmUrl==null ? "" : scmUrl.trim();
+        if(!scmUrl.endsWith("/"))
+            scmUrl += '/';
+        name = name==null ? "" : name.trim();
+        while(name.startsWith("/"))
+            name = name.substring(1);
+        while(name.endsWith("/"))
+            name = name.substring(0, name.length()-1);
+        this.scmUrl = scmUrl;
+        this.name = name.length()==0 ? null : name;
+    }
+}
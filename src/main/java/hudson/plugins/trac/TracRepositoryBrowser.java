@@ -6,19 +6,41 @@ import hudson.model.AbstractProject;
 import hudson.plugins.git.GitChangeSet;
 import hudson.scm.EditType;
 import hudson.scm.RepositoryBrowser;
+import hudson.scm.SCM;
 import hudson.scm.SubversionChangeLogSet.LogEntry;
 import hudson.scm.SubversionChangeLogSet.Path;
 import hudson.scm.SubversionRepositoryBrowser;
+import hudson.scm.SubversionSCM;
+import hudson.scm.SubversionSCM.ModuleLocation;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * {@link SubversionRepositoryBrowser} that produces Trac links.
  */
 public class TracRepositoryBrowser extends SubversionRepositoryBrowser {
+    /**
+     * {@link TracLinkContext}s of the changesets links were recently made for.
+     */
+    private transient Map<LogEntry,TracLinkContext> contexts;
+
+    /**
+     * Trac repository name of the SCM this browser belongs to,
+     * and the property it was resolved with.
+     */
+    private transient TracProjectProperty repositoryProperty;
+    private transient String repositoryName;
+
     @DataBoundConstructor
     public TracRepositoryBrowser() {
     }
@@ -26,70 +48,189 @@ public class TracRepositoryBrowser extends SubversionRepositoryBrowser {
 
     protected TracProjectProperty getTracProjectProperty(LogEntry changeSet) {
     	AbstractProject<?,?> p = (AbstractProject<?,?>)changeSet.getParent().build.getProject();
-    	return p.getProperty(TracProjectProperty.class);
+    	return TracProjectProperty.of(p);
+    }
+
+    /**
+     * Gets the repository URLs of the SCM of the project of a changeset.
+     * This function is protected to allow the tests to override it.
+     */
+    protected Collection<String> getScmUrls(LogEntry changeSet) {
+        SCM scm = changeSet.getParent().build.getProject().getScm();
+        List<String> urls = new ArrayList<String>();
+        if(scm instanceof SubversionSCM) {
+            for (ModuleLocation location : ((SubversionSCM)scm).getLocations())
+                urls.add(location.remote);
+        }
+        return urls;
     }
 
     
     /**
-     * Gets a URL for the {@link TracProjectProperty#tracWebsite} value
-     * configured for the current project.
+     * Gets the {@link TracLinkContext} of a changeset, resolving it on first use,
+     * so that the links of all its paths share it.
      */
-    private URL getTracWebURL(LogEntry changeSet) throws MalformedURLException {
-    	TracProjectProperty tpp = getTracProjectProperty(changeSet);
-        if(tpp==null)   
-        	return null;
-        else
-        	return new URL(tpp.tracWebsite);
+    private TracLinkContext getContext(LogEntry changeSet) throws MalformedURLException {
+        TracLinkContext context;
+        synchronized (this) {
+            if (contexts==null)
+                contexts = new WeakHashMap<LogEntry,TracLinkContext>();
+            context = contexts.get(changeSet);
+        }
+        if (context!=null && context.isCurrent())
+            return context;
+
+        int generation = TracProjectProperty.GENERATION.get();
+        TracProjectProperty tpp = getTracProjectProperty(changeSet);
+        context = new TracLinkContext(tpp, getRepositoryName(changeSet, tpp), generation);
+        synchronized (this) {
+            contexts.put(changeSet, context);
+        }
+        return context;
     }
 
     /**
-     * Gets the String from {@link TracProjectProperty#tracWebsite} 
-	 * which will be appended to the browser URL.
+     * Gets the name of the Trac repository of the SCM this browser belongs to,
+     * which only needs resolving again once the property changes.
+     */
+    private String getRepositoryName(LogEntry changeSet, TracProjectProperty tpp) {
+        if(tpp == null || tpp.getRepositories().isEmpty())
+            return null;
+        synchronized (this) {
+            if(repositoryProperty == tpp)
+                return repositoryName;
+        }
+        String name = tpp.getRepositoryName(getScmUrls(changeSet));
+        synchronized (this) {
+            repositoryProperty = tpp;
+            repositoryName = name;
+        }
+        return name;
+    }
+
+    /**
+     * Appends the browser path of the mapping of a path to the browser URL.
      * See JENKINS-13366
      */
-    private String getTracAppendToBrowserURL(LogEntry changeSet)  {
-    	TracProjectProperty tpp = getTracProjectProperty(changeSet);
-        if(tpp==null || tpp.tracAppendedToBrowserURL==null)   
-        	return "";
-        else {
+    private static StringBuilder appendBrowserPath(StringBuilder buf, TracPathMapping mapping)  {
+        String appendStr = mapping.browserPath;
+        if(appendStr != null) {
         	// remove ending slash, because SVN paths always start with a slash
-        	String appendStr = tpp.tracAppendedToBrowserURL;
-        	if(appendStr.endsWith("/"))
-        		return "/" + appendStr.substring(0, appendStr.length()-1);
-        	else 
-        		return "/" + appendStr;
+        	buf.append('/').append(appendStr, 0, appendStr.length()-1);
         }
-    }
-    
-    private String getPath(Path path) {
-        String pathValue = path.getValue();
-        TracProjectProperty tpp = getTracProjectProperty(path.getLogEntry());
-        if(tpp != null && tpp.tracStrippedFromChangesetPath != null && pathValue != null
-            && pathValue.startsWith(tpp.tracStrippedFromChangesetPath))
-            return pathValue.substring(tpp.tracStrippedFromChangesetPath.length());
-        else
-            return pathValue;
+        return buf;
     }
 
     @Override
     public URL getDiffLink(Path path) throws IOException {
         if(path.getEditType()!= EditType.EDIT)
             return null;    // no diff if this is not an edit change
-        URL baseUrl = getTracWebURL(path.getLogEntry());
-        int revision = path.getLogEntry().getRevision();
-        return new URL(baseUrl, "changeset/" + revision + getPath(path) + "#file0");
+        TracLinkContext context = getContext(path.getLogEntry());
+        if(context.links == null)
+            return null;
+        return context.links.resolve(diffLink(context, path));
+    }
+
+    /**
+     * Links to the diff of the file on the page of the whole changeset, where
+     * Trac numbers the paths in its order, or, if the path isn't one of its
+     * changeset, to the changeset restricted to the file.
+     */
+    private static StringBuilder diffLink(TracLinkContext context, Path path) {
+        LogEntry changeSet = path.getLogEntry();
+        StringBuilder link = changeSetLink(context, changeSet);
+        int index = context.getFileIndex(changeSet.getAffectedPaths(), path.getValue());
+        if(index < 0)
+            return link.append(context.getPath(path.getValue())).append("#file0");
+        else
+            return link.append("#file").append(index);
     }
 
     @Override
     public URL getFileLink(Path path) throws IOException {
-        URL baseUrl = getTracWebURL(path.getLogEntry());
-        return baseUrl == null ? null : new URL(baseUrl, "browser" + getTracAppendToBrowserURL(path.getLogEntry()) + getPath(path) + "#L1");
+        TracLinkContext context = getContext(path.getLogEntry());
+        if(context.links == null)
+            return null;
+        return context.links.resolve(fileLink(new StringBuilder(), context, path.getValue()));
+    }
+
+    /**
+     * Links to the first line of the file in the Trac browser.
+     */
+    private static StringBuilder fileLink(StringBuilder buf, TracLinkContext context, String pathValue) {
+        TracPathMapping mapping = context.getMapping(pathValue);
+        buf.append("browser");
+        if(context.repository != null)
+            buf.append('/').append(context.repository);
+        appendBrowserPath(buf, mapping);
+        return buf.append(TracLinkContext.getPath(mapping, pathValue)).append("#L1");
+    }
+
+    /**
+     * Links to the changeset, in its repository if the Trac site has several.
+     */
+    private static StringBuilder changeSetLink(TracLinkContext context, LogEntry changeSet) {
+        StringBuilder link = new StringBuilder("changeset/").append(changeSet.getRevision());
+        if(context.repository != null)
+            link.append('/').append(context.repository);
+        return link;
     }
 
     @Override
     public URL getChangeSetLink(LogEntry changeSet) throws IOException {
-        URL baseUrl = getTracWebURL(changeSet);
-        return baseUrl == null ? null : new URL(baseUrl, "changeset/" + changeSet.getRevision());
+        TracLinkContext context = getContext(changeSet);
+        return context.links == null ? null : context.links.resolve(changeSetLink(context, changeSet));
+    }
+
+    /**
+     * Gets the links of a changeset and of all its paths at once,
+     * resolving what they have in common only once.
+     *
+     * @return null if the project has no Trac website.
+     */
+    public TracChangeSetLinks getLinks(LogEntry changeSet) throws IOException {
+        TracLinkContext context = getContext(changeSet);
+        if(context.links == null)
+            return null;
+        StringBuilder changeSetPath = changeSetLink(context, changeSet);
+        List<TracChangeSetLinks.PathLinks> paths = new ArrayList<TracChangeSetLinks.PathLinks>(changeSet.getPaths().size());
+        StringBuilder buf = new StringBuilder();
+        for (Path path : sortForTrac(changeSet.getPaths())) {
+            buf.setLength(0);
+            String fileLink = resolve(context.links, fileLink(buf, context, path.getValue()));
+            String diffLink = null;
+            if(path.getEditType() == EditType.EDIT)
+                diffLink = resolve(context.links, diffLink(context, path));
+            paths.add(new TracChangeSetLinks.PathLinks(path.getValue(), path.getEditType(), fileLink, diffLink));
+        }
+        return new TracChangeSetLinks(context.links.resolveToString(changeSetPath), paths);
+    }
+
+    /**
+     * Sorts the paths of a changeset the way Trac lists them on the changeset page.
+     */
+    private static List<Path> sortForTrac(Collection<Path> paths) {
+        List<Path> sorted = new ArrayList<Path>(paths);
+        Collections.sort(sorted, new Comparator<Path>() {
+            public int compare(Path a, Path b) {
+                return TracLinkContext.CODE_POINT_ORDER.compare(a.getValue(), b.getValue());
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Resolves the link of one path, so that a path that makes an invalid
+     * link only loses its own link.
+     *
+     * @return null if the link is invalid.
+     */
+    private static String resolve(TracLinkBuilder links, CharSequence link) {
+        try {
+            return links.resolveToString(link);
+        } catch (MalformedURLException e) {
+            return null;
+        }
     }
 
     @Extension
@@ -0,0 +1,504 @@
+package hudson.plugins.trac;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Client of the XML-RPC interface that the Trac XmlRpcPlugin adds to a Trac website.
+ *
+ * <h2>Batching</h2>
+ * <p>
+ * {@link #getTicket(int)} and {@link #updateTicket(int, String, Map, boolean)}
+ * don't send anything right away. The calls submitted within {@link #LINGER}
+ * milliseconds of the first one are sent together as one <tt>system.multicall</tt>,
+ * so that asking for the tickets of a whole changelog takes one request rather
+ * than one per ticket. A batch is sent as soon as it has {@link #MAX_BATCH} calls,
+ * and {@link #flush()} sends it right away.
+ *
+ * <h2>Connections</h2>
+ * <p>
+ * {@link HttpURLConnection} keeps the connections to a host alive and reuses
+ * them as long as every response is read to its end and closed, which every
+ * request made here does, including the failed ones. At most
+ * {@link #MAX_CONNECTIONS} requests are sent to the same host at once, by all
+ * the clients together, so that a slow Trac is not flooded with connections.
+ *
+ * <p>
+ * Batches are sent by at most {@link #MAX_CONNECTIONS} threads per host. While
+ * they are all busy, a client has at most one batch waiting for them, and the
+ * calls submitted in the meantime join it rather than making more batches, so
+ * a slow or hung Trac holds up a bounded number of threads and requests.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class TracRpcClient {
+    private final URL endpoint;
+    /**
+     * Value of the Authorization header, null to call anonymously.
+     */
+    private final String authorization;
+    private final Host host;
+    private final long linger;
+    private final int maxBatch;
+
+    /**
+     * Calls waiting to be sent, guarded by itself.
+     */
+    private final List<Call<?>> pending = new ArrayList<Call<?>>();
+    /**
+     * Whether a flush of {@link #pending} is scheduled, guarded by {@link #pending}.
+     */
+    private boolean flushScheduled;
+    /**
+     * Whether a {@link Batch} is waiting for a thread of {@link #host}, guarded by {@link #pending}.
+     * It takes the calls that are pending when it starts.
+     */
+    private boolean batchQueued;
+
+    /**
+     * @param website
+     *      {@link TracProjectProperty#tracWebsite}
+     * @param username
+     *      null to call anonymously, which only allows what Trac allows anonymous users.
+     */
+    public TracRpcClient(String website, String username, String password) throws MalformedURLException {
+        this(new URL(new URL(website), username==null ? "rpc" : "login/rpc"),
+                username==null ? null : "Basic "+base64(username+':'+(password==null ? "" : password)),
+                LINGER, MAX_BATCH);
+    }
+
+    TracRpcClient(URL endpoint, String authorization, long linger, int maxBatch) {
+        this.endpoint = endpoint;
+        this.authorization = authorization;
+        this.linger = linger;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.host = getHost(endpoint);
+    }
+
+    URL getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Gets a ticket, in the next batch.
+     */
+    public Future<TracTicket> getTicket(int id) {
+        return getTicket(id, null);
+    }
+
+    /**
+     * Gets a ticket, in the next batch, and tells the given callback once it arrives.
+     *
+     * @param callback
+     *      called by the thread that sent the batch, right after the returned
+     *      future is done; may be null.
+     */
+    public Future<TracTicket> getTicket(int id, Callback<? super TracTicket> callback) {
+        return submit(new Call<TracTicket>(callback, "ticket.get", id) {
+            @Override
+            TracTicket convert(Object result) throws TracRpcException {
+                return TracTicket.fromRpc(result);
+            }
+        });
+    }
+
+    /**
+     * Comments on a ticket and changes its fields, in the next batch.
+     *
+     * @param attributes
+     *      Fields to change, by name.
+     * @param notify
+     *      Whether Trac notifies the people following the ticket.
+     * @return
+     *      the ticket as it is after the change.
+     */
+    public Future<TracTicket> updateTicket(int id, String comment, Map<String,?> attributes, boolean notify) {
+        return updateTicket(id, comment, attributes, notify, null);
+    }
+
+    /**
+     * Comments on a ticket and changes its fields, in the next batch,
+     * and tells the given callback once it is done.
+     *
+     * @param callback
+     *      see {@link #getTicket(int, Callback)}.
+     */
+    public Future<TracTicket> updateTicket(int id, String comment, Map<String,?> attributes, boolean notify,
+            Callback<? super TracTicket> callback) {
+        Map<String,Object> fields = new LinkedHashMap<String,Object>();
+        if (attributes!=null)
+            fields.putAll(attributes);
+        return submit(new Call<TracTicket>(callback, "ticket.update", id, comment, fields, notify) {
+            @Override
+            TracTicket convert(Object result) throws TracRpcException {
+                return TracTicket.fromRpc(result);
+            }
+        });
+    }
+
+    /**
+     * Calls a method right away, outside of any batch.
+     *
+     * @return
+     *      what it returned.
+     * @throws TracRpcException
+     *      if it returned a fault.
+     */
+    public Object call(String method, Object... params) throws IOException {
+        return execute(method, Arrays.asList(params));
+    }
+
+    /**
+     * Sends the calls waiting for the next batch right away.
+     */
+    public void flush() {
+        synchronized (pending) {
+            flushScheduled = false;
+            if (pending.isEmpty() || batchQueued)
+                return;     // the queued batch takes them
+            batchQueued = true;
+        }
+        queueBatch();
+    }
+
+    private <T> Future<T> submit(Call<T> call) {
+        boolean send = false, schedule = false;
+        synchronized (pending) {
+            pending.add(call);
+            if (pending.size()>=maxBatch) {
+                if (!batchQueued)
+                    batchQueued = send = true;
+            } else if (!flushScheduled) {
+                flushScheduled = schedule = true;
+            }
+        }
+        if (send)
+            queueBatch();
+        else if (schedule)
+            scheduleFlush();
+        return call;
+    }
+
+    private void scheduleFlush() {
+        SCHEDULER.schedule(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, linger, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hands a {@link Batch} to the threads of the host, having set {@link #batchQueued}.
+     * If too many batches are waiting for the host already, all the calls waiting fail,
+     * as no batch would be left to send them.
+     */
+    private void queueBatch() {
+        try {
+            host.sender.execute(new Batch());
+        } catch (RejectedExecutionException e) {
+            List<Call<?>> batch;
+            synchronized (pending) {
+                batchQueued = false;
+                batch = new ArrayList<Call<?>>(pending);
+                pending.clear();
+            }
+            IOException cause = new IOException("Too many requests waiting to be sent to "+endpoint.getHost());
+            for (Call<?> c : batch)
+                c.fail(cause);
+        }
+    }
+
+    /**
+     * Takes the next batch from {@link #pending}, guarded by it.
+     */
+    private List<Call<?>> takeBatch() {
+        if (pending.isEmpty())
+            return Collections.emptyList();
+        List<Call<?>> head = pending.subList(0, Math.min(maxBatch, pending.size()));
+        List<Call<?>> batch = new ArrayList<Call<?>>(head);
+        head.clear();
+        return batch;
+    }
+
+    /**
+     * Sends the calls pending when it starts, up to {@link #maxBatch} of them, as one request.
+     */
+    private final class Batch implements Runnable {
+        public void run() {
+            List<Call<?>> calls;
+            boolean more = false, schedule = false;
+            synchronized (pending) {
+                batchQueued = false;
+                calls = takeBatch();
+                if (pending.size()>=maxBatch)
+                    batchQueued = more = true;
+                else if (!pending.isEmpty() && !flushScheduled)
+                    flushScheduled = schedule = true;
+            }
+            if (more)
+                queueBatch();
+            else if (schedule)
+                scheduleFlush();
+            if (!calls.isEmpty())
+                send(calls);
+        }
+
+        private void send(List<Call<?>> calls) {
+            try {
+                if (calls.size()==1) {
+                    Call<?> c = calls.get(0);
+                    c.complete(execute(c.method, c.params));
+                    return;
+                }
+                List<Object> multicall = new ArrayList<Object>(calls.size());
+                for (Call<?> c : calls) {
+                    Map<String,Object> m = new LinkedHashMap<String,Object>();
+                    m.put("methodName", c.method);
+                    m.put("params", c.params);
+                    multicall.add(m);
+                }
+                Object results = execute("system.multicall", Collections.<Object>singletonList(multicall));
+                if (!(results instanceof List) || ((List<?>)results).size()!=calls.size())
+                    throw new TracRpcException(0, "Unexpected system.multicall result: "+results);
+                for (int i=0; i<calls.size(); i++) {
+                    Object r = ((List<?>)results).get(i);
+                    if (r instanceof List && ((List<?>)r).size()==1)
+                        calls.get(i).complete(((List<?>)r).get(0));
+                    else
+                        calls.get(i).fail(TracXmlRpc.toException(r));
+                }
+            } catch (IOException e) {
+                for (Call<?> c : calls)
+                    c.fail(e);
+            } catch (RuntimeException e) {
+                for (Call<?> c : calls)
+                    c.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Sends one request and reads its response.
+     */
+    private Object execute(String method, List<?> params) throws IOException {
+        byte[] body = TracXmlRpc.writeCall(new StringBuilder(), method, params).toString().getBytes("UTF-8");
+        try {
+            host.connections.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to call "+method);
+        }
+        try {
+            HttpURLConnection con = (HttpURLConnection) endpoint.openConnection();
+            con.setConnectTimeout(CONNECT_TIMEOUT);
+            con.setReadTimeout(READ_TIMEOUT);
+            con.setDoOutput(true);
+            con.setRequestMethod("POST");
+            con.setRequestProperty("Content-Type", "text/xml; charset=UTF-8");
+            if (authorization!=null)
+                con.setRequestProperty("Authorization", authorization);
+            con.setFixedLengthStreamingMode(body.length);
+            OutputStream out = con.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+
+            int code = con.getResponseCode();
+            if (code!=HttpURLConnection.HTTP_OK) {
+                drain(con.getErrorStream());
+                throw new TracHttpException(code, "Calling "+method+" on "+endpoint+" failed with HTTP "+code);
+            }
+            InputStream in = con.getInputStream();
+            try {
+                return TracXmlRpc.readResponse(in);
+            } finally {
+                drain(in);
+            }
+        } finally {
+            host.connections.release();
+        }
+    }
+
+    /**
+     * Reads a response to its end and closes it, so that its connection can be reused.
+     */
+    private static void drain(InputStream in) throws IOException {
+        if (in==null)
+            return;
+        try {
+            byte[] buf = new byte[4096];
+            while (in.read(buf)>=0)
+                ;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Receives the result of a call that was sent in a batch.
+     */
+    public interface Callback<T> {
+        void completed(T result);
+
+        /**
+         * @param cause
+         *      a {@link TracRpcException} if the method returned a fault,
+         *      a {@link TracHttpException} if Trac answered with an HTTP error,
+         *      or why the batch could not be sent.
+         */
+        void failed(Throwable cause);
+    }
+
+    /**
+     * A call waiting for its result.
+     */
+    static class Call<T> extends FutureTask<T> {
+        private final Callback<? super T> callback;
+        final String method;
+        final List<Object> params;
+
+        Call(Callback<? super T> callback, String method, Object... params) {
+            super(NOTHING, null);
+            this.callback = callback;
+            this.method = method;
+            this.params = Arrays.asList(params);
+        }
+
+        @Override
+        protected void done() {
+            if (callback==null || isCancelled())
+                return;
+            T result;
+            try {
+                result = get();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);    // done, so get() doesn't wait
+            } catch (ExecutionException e) {
+                callback.failed(e.getCause());
+                return;
+            }
+            callback.completed(result);
+        }
+
+        /**
+         * Turns the value the method returned into the result of the call.
+         */
+        @SuppressWarnings("unchecked")
+        T convert(Object result) throws TracRpcException {
+            return (T)result;
+        }
+
+        void complete(Object result) {
+            try {
+                set(convert(result));
+            } catch (TracRpcException e) {
+                setException(e);
+            }
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
+
+        private static final Runnable NOTHING = new Runnable() {
+            public void run() {
+            }
+        };
+    }
+
+    /**
+     * What the clients of the same host share: the permits for their
+     * requests, and the threads that send their batches.
+     */
+    private static final class Host {
+        final Semaphore connections = new Semaphore(MAX_CONNECTIONS, true);
+        final ThreadPoolExecutor sender = new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED), new DaemonThreadFactory());
+
+        Host() {
+            sender.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Gets what the clients of the host of the given endpoint share.
+     */
+    private static Host getHost(URL endpoint) {
+        String name = endpoint.getHost()+':'+(endpoint.getPort()<0 ? endpoint.getDefaultPort() : endpoint.getPort());
+        Host h = HOSTS.get(name);
+        if (h==null) {
+            Host other = HOSTS.putIfAbsent(name, h = new Host());
+            if (other!=null)
+                h = other;
+        }
+        return h;
+    }
+
+    private static String base64(String s) {
+        try {
+            return new String(Base64.encodeBase64(s.getBytes("UTF-8")), "US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Milliseconds a call waits for others to be sent along with it.
+     */
+    public static int LINGER = Integer.getInteger(TracRpcClient.class.getName()+".linger", 20);
+
+    /**
+     * Most calls sent in one <tt>system.multicall</tt>.
+     */
+    public static int MAX_BATCH = Integer.getInteger(TracRpcClient.class.getName()+".maxBatch", 100);
+
+    /**
+     * Most requests sent to one host at once.
+     */
+    public static final int MAX_CONNECTIONS = Integer.getInteger(TracRpcClient.class.getName()+".maxConnections", 4);
+
+    /**
+     * Most batches waiting to be sent to one host, at most one per client.
+     */
+    public static final int MAX_QUEUED = Integer.getInteger(TracRpcClient.class.getName()+".maxQueued", 100);
+
+    /**
+     * Milliseconds to wait for a connection and for a response.
+     */
+    public static int CONNECT_TIMEOUT = Integer.getInteger(TracRpcClient.class.getName()+".connectTimeout", 10000);
+    public static int READ_TIMEOUT = Integer.getInteger(TracRpcClient.class.getName()+".readTimeout", 30000);
+
+    private static final ConcurrentMap<String,Host> HOSTS = new ConcurrentHashMap<String,Host>();
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+}
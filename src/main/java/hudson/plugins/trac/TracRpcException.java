@@ -0,0 +1,23 @@
+package hudson.plugins.trac;
+
+import java.io.IOException;
+
+/**
+ * Fault returned by a Trac XML-RPC call.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class TracRpcException extends IOException {
+    private final int faultCode;
+
+    public TracRpcException(int faultCode, String faultString) {
+        super(faultString);
+        this.faultCode = faultCode;
+    }
+
+    public int getFaultCode() {
+        return faultCode;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
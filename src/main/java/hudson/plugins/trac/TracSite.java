@@ -0,0 +1,139 @@
+package hudson.plugins.trac;
+
+import hudson.util.Secret;
+
+import java.net.MalformedURLException;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * One Trac website, shared by all the projects that link to it, together with
+ * what is derived from its URL, so that this is only built once per site
+ * rather than once per project.
+ *
+ * <p>
+ * Instances are interned by {@link TracProjectProperty.DescriptorImpl#getSite(String)}.
+ * The sites listed in the global configuration may have credentials, which
+ * the XML-RPC calls to them are made with; the others are called anonymously.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class TracSite {
+    /**
+     * Trac website URL.
+     *
+     * This value is normalized and therefore it always ends with '/'.
+     */
+    public final String url;
+
+    /**
+     * User that the XML-RPC interface is called as, null to call it anonymously.
+     * Changes when the global configuration is saved.
+     */
+    private volatile String username;
+
+    /**
+     * Password of {@link #username}.
+     */
+    private volatile Secret password;
+
+    private transient volatile TracLinkBuilder linkBuilder;
+    private transient volatile TracLinkRenderer renderer;
+    private transient volatile TracLinkAction action;
+    private transient volatile TracRpcClient rpcClient;
+
+    public TracSite(String url) {
+        this(url, null, null);
+    }
+
+    @DataBoundConstructor
+    public TracSite(String url, String username, String password) {
+        this.url = normalize(url);
+        this.username = username==null || username.length()==0 ? null : username;
+        this.password = this.username==null ? null : Secret.fromString(password);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public Secret getPassword() {
+        return password;
+    }
+
+    /**
+     * Takes the credentials of another configuration of this site,
+     * making the next XML-RPC calls with them.
+     */
+    synchronized void setCredentials(TracSite other) {
+        String u = other==null ? null : other.username;
+        Secret p = other==null ? null : other.password;
+        if (eq(u, username) && eq(p, password))
+            return;
+        username = u;
+        password = p;
+        rpcClient = null;
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a==null ? b==null : a.equals(b);
+    }
+
+    /**
+     * Gets the {@link TracLinkBuilder} for {@link #url}, which is
+     * only parsed once for all the links made to this site.
+     */
+    TracLinkBuilder getLinkBuilder() throws MalformedURLException {
+        TracLinkBuilder b = linkBuilder;
+        if (b==null)
+            linkBuilder = b = new TracLinkBuilder(url);
+        return b;
+    }
+
+    TracLinkRenderer getRenderer() {
+        TracLinkRenderer r = renderer;
+        if (r==null)
+            renderer = r = new TracLinkRenderer(url);
+        return r;
+    }
+
+    /**
+     * Gets the action that links the top page of every project of this site to it.
+     */
+    TracLinkAction getAction() {
+        TracLinkAction a = action;
+        if (a==null)
+            action = a = new TracLinkAction(this);
+        return a;
+    }
+
+    /**
+     * Gets the client of the XML-RPC interface of this site, shared by all the
+     * projects linking to it so that their calls are batched together.
+     * It calls as {@link #username}, or anonymously if there is none.
+     */
+    TracRpcClient getRpcClient() throws MalformedURLException {
+        TracRpcClient c = rpcClient;
+        if (c==null) {
+            synchronized (this) {
+                c = rpcClient;
+                if (c==null)
+                    rpcClient = c = new TracRpcClient(url, username, username==null ? null : Secret.toString(password));
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Normalizes a Trac website URL the way {@link #url} is.
+     *
+     * @return null if the URL is empty.
+     */
+    static String normalize(String url) {
+        if(url==null || url.length()==0)
+            return null;
+        if(!url.endsWith("/"))
+            url += '/';
+        return url;
+    }
+}
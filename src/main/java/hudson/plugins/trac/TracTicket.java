@@ -0,0 +1,75 @@
+package hudson.plugins.trac;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What Trac tells about a ticket through <tt>ticket.get</tt>.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class TracTicket {
+    public final int id;
+    /**
+     * All the fields of the ticket, by name, as Trac returned them.
+     */
+    private final Map<String,Object> attributes;
+
+    public TracTicket(int id, Map<String,Object> attributes) {
+        this.id = id;
+        this.attributes = Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * Reads the <tt>[id, time_created, time_changed, attributes]</tt>
+     * array <tt>ticket.get</tt> returns.
+     */
+    @SuppressWarnings("unchecked")
+    static TracTicket fromRpc(Object value) throws TracRpcException {
+        if (value instanceof List) {
+            List<?> l = (List<?>)value;
+            if (l.size()>=4 && l.get(0) instanceof Integer && l.get(3) instanceof Map)
+                return new TracTicket((Integer)l.get(0), (Map<String,Object>)l.get(3));
+        }
+        throw new TracRpcException(0, "Unexpected ticket.get result: "+value);
+    }
+
+    public Map<String,Object> getAttributes() {
+        return attributes;
+    }
+
+    private String get(String name) {
+        Object v = attributes.get(name);
+        return v==null ? null : v.toString();
+    }
+
+    public String getSummary() {
+        return get("summary");
+    }
+
+    public String getStatus() {
+        return get("status");
+    }
+
+    public String getOwner() {
+        return get("owner");
+    }
+
+    public String getMilestone() {
+        return get("milestone");
+    }
+
+    public String getResolution() {
+        return get("resolution");
+    }
+
+    public boolean isClosed() {
+        return "closed".equals(getStatus());
+    }
+
+    @Override
+    public String toString() {
+        return "#"+id+" "+getSummary();
+    }
+}
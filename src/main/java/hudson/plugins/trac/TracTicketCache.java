@@ -0,0 +1,373 @@
+package hudson.plugins.trac;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the tickets recently fetched from Trac, so that the many builds
+ * and pages that refer to the same tickets don't ask Trac for them again.
+ *
+ * <p>
+ * Entries are keyed by the {@link TracSite#url} and the ticket number. A ticket
+ * is fresh for {@link #ttl} milliseconds after it was loaded. After that it is
+ * stale: it is still returned, up to {@link #maxStale} milliseconds after it
+ * was loaded, but the first caller to see it stale starts loading it again in
+ * the background. Older entries are treated as missing. The least recently used
+ * entries are evicted once the cache holds more than its maximum number of tickets.
+ *
+ * <p>
+ * Only one load of a ticket runs at a time: callers asking for a ticket that
+ * is being loaded get the load in progress, so any number of pages referring
+ * to <tt>#1234</tt> at once cause a single call to Trac. Loads go through
+ * {@link TracRpcClient}, which batches the calls for different tickets.
+ * A ticket that failed to load isn't tried again for {@link #ttl} milliseconds.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TracTicketCache {
+    private final int maxSize;
+    /**
+     * Milliseconds a loaded ticket is fresh.
+     */
+    private final long ttl;
+    /**
+     * Milliseconds a loaded ticket is returned at all.
+     */
+    private final long maxStale;
+    private final Loader loader;
+    private final Map<Key,Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong prefetchLoads = new AtomicLong();
+    private final AtomicLong failedLoads = new AtomicLong();
+    /**
+     * Number of loads that completed or failed, which {@link #loadNanos} is the total time of.
+     */
+    private final AtomicLong finishedLoads = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+
+    TracTicketCache(final int maxSize, long ttl, long maxStale, Loader loader) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.maxStale = Math.max(ttl, maxStale);
+        this.loader = loader;
+        this.entries = new LinkedHashMap<Key,Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key,Entry> eldest) {
+                return size()>TracTicketCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Starts loading tickets for a cache.
+     */
+    interface Loader {
+        /**
+         * Starts loading a ticket, and tells the given callback once it is
+         * loaded or failed to load. Must not wait for the ticket.
+         */
+        void load(String url, int id, TracRpcClient.Callback<TracTicket> callback);
+    }
+
+    /**
+     * Loads tickets through the shared {@link TracRpcClient} of their site.
+     */
+    static final Loader RPC = new Loader() {
+        public void load(String url, int id, TracRpcClient.Callback<TracTicket> callback) {
+            try {
+                TracProjectProperty.DescriptorImpl.getSite(url).getRpcClient().getTicket(id, callback);
+            } catch (Exception e) {
+                callback.failed(e);
+            }
+        }
+    };
+
+    /**
+     * Gets a ticket, waiting for it only if there is no fresh or stale copy of it.
+     *
+     * @return a future that is done unless the ticket is being loaded.
+     */
+    Future<TracTicket> get(String url, int id) {
+        Lookup l = lookup(url, id, false);
+        if (l.ticket!=null)
+            return new Loaded(l.ticket);
+        if (l.load!=null)
+            return l.load;
+        return new Loaded(new TracRpcException(0, "Ticket #"+id+" recently failed to load from "+url));
+    }
+
+    /**
+     * Gets a ticket if there is a fresh or stale copy of it, without ever waiting.
+     * If there is none, or it is stale, it is loaded in the background.
+     *
+     * @return null if the ticket isn't known yet.
+     */
+    TracTicket getIfPresent(String url, int id) {
+        return lookup(url, id, false).ticket;
+    }
+
+    /**
+     * Starts loading the given tickets unless they are fresh, so that the
+     * calls for them are batched together, without waiting for any of them.
+     * These lookups are not counted as hits or misses, as nothing is shown from them.
+     */
+    void prefetch(String url, Iterable<Integer> ids) {
+        for (Integer id : ids)
+            lookup(url, id, true);
+    }
+
+    /**
+     * @param prefetch
+     *      true to leave the lookup out of the hit and miss counts.
+     */
+    private Lookup lookup(String url, int id, boolean prefetch) {
+        final long now = System.currentTimeMillis();
+        final Key key = new Key(url, id);
+        Lookup l = new Lookup();
+        Load start = null;
+        synchronized (entries) {
+            Entry e = entries.get(key);
+            if (e==null)
+                entries.put(key, e = new Entry());
+            if (e.ticket!=null && now-e.loaded<maxStale) {
+                l.ticket = e.ticket;
+                if (now-e.loaded<ttl) {
+                    if (!prefetch)
+                        hits.incrementAndGet();
+                } else {
+                    if (!prefetch)
+                        staleHits.incrementAndGet();
+                    if (e.load==null && now-e.failed>=ttl)
+                        start = e.load = new Load(key, e);
+                }
+            } else {
+                if (!prefetch)
+                    misses.incrementAndGet();
+                if (e.load==null && now-e.failed>=ttl)
+                    start = e.load = new Load(key, e);
+                l.load = e.load;
+            }
+        }
+        if (start!=null) {
+            loads.incrementAndGet();
+            if (prefetch)
+                prefetchLoads.incrementAndGet();
+            loader.load(url, id, start);
+        }
+        return l;
+    }
+
+    /**
+     * Forgets all the tickets of a site.
+     */
+    void removeSite(String url) {
+        synchronized (entries) {
+            for (Iterator<Key> it=entries.keySet().iterator(); it.hasNext(); )
+                if (it.next().url.equals(url))
+                    it.remove();
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Number of lookups that found a fresh ticket.
+     */
+    long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups that found a stale ticket, returned while it was loaded again.
+     */
+    long getStaleHitCount() {
+        return staleHits.get();
+    }
+
+    /**
+     * Number of lookups that found no ticket, or one too old to return.
+     */
+    long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Number of loads started, whether they completed or not.
+     */
+    long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * Number of the loads that were started by {@link #prefetch(String, Iterable)}.
+     */
+    long getPrefetchLoadCount() {
+        return prefetchLoads.get();
+    }
+
+    long getFailedLoadCount() {
+        return failedLoads.get();
+    }
+
+    /**
+     * Average time between starting a load and its completion, in milliseconds,
+     * of the loads that completed or failed.
+     */
+    double getAverageLoadTime() {
+        synchronized (finishedLoads) {
+            long n = finishedLoads.get();
+            return n==0 ? 0 : loadNanos.get()/(double)TimeUnit.MILLISECONDS.toNanos(1)/n;
+        }
+    }
+
+    private void finished(long started) {
+        synchronized (finishedLoads) {
+            loadNanos.addAndGet(System.nanoTime()-started);
+            finishedLoads.incrementAndGet();
+        }
+    }
+
+    /**
+     * What a lookup found.
+     */
+    private static final class Lookup {
+        TracTicket ticket;
+        Load load;
+    }
+
+    /**
+     * What is known about one ticket. Guarded by {@link TracTicketCache#entries}.
+     */
+    private static final class Entry {
+        TracTicket ticket;
+        long loaded;
+        /**
+         * The load in progress, if any.
+         */
+        Load load;
+        long failed = Long.MIN_VALUE/2;
+    }
+
+    /**
+     * One load of a ticket, waited for by everyone asking for it in the meantime.
+     */
+    private final class Load extends FutureTask<TracTicket> implements TracRpcClient.Callback<TracTicket> {
+        private final Key key;
+        private final Entry entry;
+        private final long started = System.nanoTime();
+
+        Load(Key key, Entry entry) {
+            super(NOTHING, null);
+            this.key = key;
+            this.entry = entry;
+        }
+
+        public void completed(TracTicket ticket) {
+            finished(started);
+            synchronized (entries) {
+                entry.ticket = ticket;
+                entry.loaded = System.currentTimeMillis();
+                entry.load = null;
+            }
+            set(ticket);
+        }
+
+        public void failed(Throwable cause) {
+            finished(started);
+            failedLoads.incrementAndGet();
+            synchronized (entries) {
+                entry.failed = System.currentTimeMillis();
+                entry.load = null;
+            }
+            setException(cause);
+        }
+
+        @Override
+        public String toString() {
+            return "loading #"+key.id+" from "+key.url;
+        }
+    }
+
+    /**
+     * A ticket that is already there, or a failure that already happened.
+     */
+    private static final class Loaded implements Future<TracTicket> {
+        private final TracTicket ticket;
+        private final Throwable failure;
+
+        Loaded(TracTicket ticket) {
+            this.ticket = ticket;
+            this.failure = null;
+        }
+
+        Loaded(Throwable failure) {
+            this.ticket = null;
+            this.failure = failure;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return true;
+        }
+
+        public TracTicket get() throws ExecutionException {
+            if (failure!=null)
+                throw new ExecutionException(failure);
+            return ticket;
+        }
+
+        public TracTicket get(long timeout, TimeUnit unit) throws ExecutionException {
+            return get();
+        }
+    }
+
+    private static final class Key {
+        private final String url;
+        private final int id;
+
+        Key(String url, int id) {
+            this.url = url;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return url.hashCode()*31+id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key that = (Key) o;
+            return id==that.id && url.equals(that.url);
+        }
+    }
+
+    private static final Runnable NOTHING = new Runnable() {
+        public void run() {}
+    };
+}
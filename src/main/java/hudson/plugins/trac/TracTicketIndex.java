@@ -0,0 +1,478 @@
+package hudson.plugins.trac;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maps Trac ticket numbers to the sorted ints, such as build numbers, of
+ * what refers to them, stored on disk.
+ *
+ * <p>
+ * The index file holds the ticket numbers in ascending order, the offset of
+ * the postings of each ticket, and all the postings, every one an int, each
+ * ticket's in ascending order. It is read into three arrays, so looking up a
+ * ticket is a binary search followed by copying its postings.
+ *
+ * <p>
+ * Changes are appended to a journal next to the index file, and kept in memory
+ * on top of the arrays until there are {@link #COMPACT_THRESHOLD} of them, when
+ * they are merged into a new index file that replaces the old one. Adding the
+ * tickets of a build therefore writes a few bytes rather than the whole index.
+ * A journal cut short by a crash is read up to its last complete change.
+ *
+ * <p>
+ * Postings are never reused: a removed posting stays removed even if it is added again.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TracTicketIndex {
+    final File file;
+    private final File journal;
+
+    private int[] tickets = EMPTY;
+    /**
+     * The postings of <tt>tickets[i]</tt> are <tt>postings[offsets[i]]</tt>
+     * up to <tt>postings[offsets[i+1]]</tt>, exclusive.
+     */
+    private int[] offsets = {0};
+    private int[] postings = EMPTY;
+
+    /**
+     * Postings added by the journal, by ticket, each in ascending order.
+     */
+    private final Map<Integer,int[]> added = new TreeMap<Integer,int[]>();
+    /**
+     * Postings removed by the journal.
+     */
+    private final TreeSet<Integer> removed = new TreeSet<Integer>();
+    private int changes;
+
+    private TracTicketIndex(File file) {
+        this.file = file;
+        this.journal = new File(file.getPath()+".log");
+    }
+
+    /**
+     * Reads the index in the given file and its journal.
+     * Neither needs to exist yet.
+     */
+    static TracTicketIndex load(File file) throws IOException {
+        TracTicketIndex index = new TracTicketIndex(file);
+        index.read();
+        if (index.replay())
+            index.compact();    // drop the broken end of the journal before appending to it
+        return index;
+    }
+
+    private void read() throws IOException {
+        if (!file.exists())
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt()!=FORMAT_VERSION)
+                throw new IOException("Unknown format of "+file);
+            final long max = file.length()/4;
+            int n = in.readInt();
+            if (n<0 || n>max)
+                throw new IOException("Corrupted "+file);
+            int[] tickets = readInts(in, n);
+            int[] offsets = readInts(in, n+1);
+            if (offsets[n]<0 || offsets[n]>max)
+                throw new IOException("Corrupted "+file);
+            int[] postings = readInts(in, offsets[n]);
+            this.tickets = tickets;
+            this.offsets = offsets;
+            this.postings = postings;
+        } catch (EOFException e) {
+            throw new IOException("Truncated "+file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int[] readInts(DataInputStream in, int n) throws IOException {
+        int[] a = new int[n];
+        for (int i=0; i<n; i++)
+            a[i] = in.readInt();
+        return a;
+    }
+
+    /**
+     * Applies the changes in the journal.
+     *
+     * @return true if it ends with an incomplete change.
+     */
+    private boolean replay() throws IOException {
+        if (!journal.exists())
+            return false;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+        try {
+            while (true) {
+                int type = in.read();
+                if (type<0)
+                    return false;
+                int posting = in.readInt();
+                if (type==ADD) {
+                    int n = in.readInt();
+                    if (n<0 || n>journal.length()/4)
+                        return true;
+                    apply(posting, readInts(in, n));
+                } else if (type==REMOVE) {
+                    removed.add(posting);
+                } else {
+                    return true;
+                }
+                changes++;
+            }
+        } catch (EOFException e) {
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gets the postings of a ticket.
+     *
+     * @return in ascending order, empty if there are none.
+     */
+    synchronized int[] get(int ticket) {
+        int i = Arrays.binarySearch(tickets, ticket);
+        int[] r = i<0 ? EMPTY : Arrays.copyOfRange(postings, offsets[i], offsets[i+1]);
+        int[] more = added.get(ticket);
+        if (more!=null)
+            r = union(r, more);
+        return removed.isEmpty() ? r : without(r);
+    }
+
+    /**
+     * Number of tickets with postings, including the removed ones until the next compaction.
+     */
+    synchronized int size() {
+        int n = tickets.length;
+        for (Integer t : added.keySet())
+            if (Arrays.binarySearch(tickets, t)<0)
+                n++;
+        return n;
+    }
+
+    /**
+     * Adds a posting to the given tickets.
+     */
+    synchronized void add(int posting, int[] tickets) throws IOException {
+        DataOutputStream out = openJournal();
+        try {
+            out.write(ADD);
+            out.writeInt(posting);
+            out.writeInt(tickets.length);
+            for (int t : tickets)
+                out.writeInt(t);
+        } finally {
+            out.close();
+        }
+        apply(posting, tickets);
+        changed();
+    }
+
+    /**
+     * Removes a posting from all the tickets.
+     */
+    synchronized void remove(int posting) throws IOException {
+        DataOutputStream out = openJournal();
+        try {
+            out.write(REMOVE);
+            out.writeInt(posting);
+        } finally {
+            out.close();
+        }
+        removed.add(posting);
+        changed();
+    }
+
+    private DataOutputStream openJournal() throws IOException {
+        File dir = journal.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Failed to create "+dir);
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, true)));
+    }
+
+    private void apply(int posting, int[] tickets) {
+        int[] one = {posting};
+        for (int t : tickets) {
+            int[] p = added.get(t);
+            added.put(t, p==null ? one : union(p, one));
+        }
+    }
+
+    private void changed() throws IOException {
+        if (++changes>=COMPACT_THRESHOLD)
+            compact();
+    }
+
+    /**
+     * Merges the journal into a new index file.
+     */
+    synchronized void compact() throws IOException {
+        int n = size();
+        int[] tickets = new int[n];
+        int[] offsets = new int[n+1];
+        int[] postings = new int[this.postings.length];
+        int count = 0, total = 0;
+        for (Map.Entry<Integer,int[]> e : merged().entrySet()) {
+            int[] p = e.getValue();
+            if (p.length==0)
+                continue;
+            if (total+p.length>postings.length)
+                postings = Arrays.copyOf(postings, Math.max(postings.length*2, total+p.length));
+            System.arraycopy(p, 0, postings, total, p.length);
+            tickets[count] = e.getKey();
+            total += p.length;
+            offsets[++count] = total;
+        }
+        tickets = Arrays.copyOf(tickets, count);
+        offsets = Arrays.copyOf(offsets, count+1);
+        postings = Arrays.copyOf(postings, total);
+
+        write(tickets, offsets, postings);
+        this.tickets = tickets;
+        this.offsets = offsets;
+        this.postings = postings;
+        added.clear();
+        removed.clear();
+        changes = 0;
+        if (!journal.delete() && journal.exists())
+            throw new IOException("Failed to delete "+journal);
+    }
+
+    /**
+     * All the postings by ticket, with the journal applied.
+     */
+    private Map<Integer,int[]> merged() {
+        Map<Integer,int[]> m = new TreeMap<Integer,int[]>();
+        for (int i=0; i<tickets.length; i++)
+            m.put(tickets[i], Arrays.copyOfRange(postings, offsets[i], offsets[i+1]));
+        for (Map.Entry<Integer,int[]> e : added.entrySet()) {
+            int[] p = m.get(e.getKey());
+            m.put(e.getKey(), p==null ? e.getValue() : union(p, e.getValue()));
+        }
+        if (!removed.isEmpty())
+            for (Map.Entry<Integer,int[]> e : m.entrySet())
+                e.setValue(without(e.getValue()));
+        return m;
+    }
+
+    private void write(int[] tickets, int[] offsets, int[] postings) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Failed to create "+dir);
+        File tmp = new File(file.getPath()+".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(tickets.length);
+            for (int t : tickets)
+                out.writeInt(t);
+            for (int o : offsets)
+                out.writeInt(o);
+            for (int p : postings)
+                out.writeInt(p);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("Failed to rename "+tmp+" to "+file);
+        }
+    }
+
+    /**
+     * Merges two ascending arrays, dropping duplicates.
+     */
+    static int[] union(int[] a, int[] b) {
+        int[] r = new int[a.length+b.length];
+        int i = 0, j = 0, n = 0;
+        while (i<a.length || j<b.length) {
+            int v;
+            if (j==b.length || (i<a.length && a[i]<b[j]))
+                v = a[i++];
+            else if (i==a.length || b[j]<a[i])
+                v = b[j++];
+            else {
+                v = a[i++];
+                j++;
+            }
+            r[n++] = v;
+        }
+        return n==r.length ? r : Arrays.copyOf(r, n);
+    }
+
+    private int[] without(int[] a) {
+        int[] r = new int[a.length];
+        int n = 0;
+        for (int v : a)
+            if (!removed.contains(v))
+                r[n++] = v;
+        return n==r.length ? r : Arrays.copyOf(r, n);
+    }
+
+    /**
+     * Gets the index of the builds of a job by the tickets their changelogs refer to.
+     */
+    static TracTicketIndex of(Job<?,?> job) throws IOException {
+        File file = new File(job.getRootDir(), FILE_NAME);
+        synchronized (JOBS) {
+            TracTicketIndex index = JOBS.get(job);
+            if (index==null || !index.file.equals(file)) {   // not loaded yet, or the job was renamed
+                index = load(file);
+                JOBS.put(job, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Gets the index of the builds of all the jobs, whose postings are the ids
+     * of the builds in {@link #getBuildTable()}.
+     */
+    static TracTicketIndex getGlobal() throws IOException {
+        synchronized (JOBS) {
+            if (global==null)
+                global = load(new File(getGlobalDir(), FILE_NAME));
+            return global;
+        }
+    }
+
+    static TracBuildTable getBuildTable() throws IOException {
+        synchronized (JOBS) {
+            if (buildTable==null)
+                buildTable = TracBuildTable.load(getBuildTableFile());
+            return buildTable;
+        }
+    }
+
+    private static File getBuildTableFile() {
+        return new File(getGlobalDir(), "trac-builds.bin");
+    }
+
+    private static File getGlobalDir() {
+        return new File(Hudson.getInstance().getRootDir(), "trac-ticket-index");
+    }
+
+    static boolean isGlobalEnabled() {
+        Hudson h = Hudson.getInstance();
+        TracProjectProperty.DescriptorImpl d = h==null ? null : h.getDescriptorByType(TracProjectProperty.DescriptorImpl.class);
+        return d!=null && d.isGlobalTicketIndex();
+    }
+
+    /**
+     * Indexes every build of a project with a Trac website when it completes,
+     * and drops the deleted ones.
+     */
+    @Extension
+    public static final class ListenerImpl extends RunListener<AbstractBuild<?,?>> {
+        @Override
+        public void onCompleted(AbstractBuild<?,?> build, TaskListener listener) {
+            TracProjectProperty tpp = TracProjectProperty.of(build.getProject());
+            if(tpp==null)
+                return; // not configured
+            int[] tickets = TracReferences.of(build.getChangeSet()).getTickets();
+            if (tickets.length==0)
+                return;
+            AbstractProject<?,?> job = build.getProject();
+            try {
+                of(job).add(build.getNumber(), tickets);
+                if (isGlobalEnabled())
+                    getGlobal().add(getBuildTable().add(job.getFullName(), build.getNumber()), tickets);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to index the Trac tickets of "+build, e);
+            }
+        }
+
+        @Override
+        public void onDeleted(AbstractBuild<?,?> build) {
+            AbstractProject<?,?> job = build.getProject();
+            try {
+                File file = new File(job.getRootDir(), FILE_NAME);
+                if (file.exists() || new File(file.getPath()+".log").exists())
+                    of(job).remove(build.getNumber());
+                if (isGlobalEnabled()) {
+                    int id = getBuildTable().find(job.getFullName(), build.getNumber());
+                    if (id>=0)
+                        getGlobal().remove(id);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to drop "+build+" from the Trac ticket index", e);
+            }
+        }
+    }
+
+    /**
+     * Keeps the builds of the global index known by the full names of their jobs
+     * when a job or a folder is renamed.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            if (!getBuildTableFile().exists())
+                return; // nothing indexed
+            String to = item.getFullName();
+            String from = to.substring(0, to.length()-newName.length())+oldName;
+            try {
+                getBuildTable().rename(from, to);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to rename "+from+" to "+to+" in the global Trac ticket index", e);
+            }
+        }
+    }
+
+    static final String FILE_NAME = "trac-tickets.idx";
+
+    /**
+     * Indexes of the jobs looked up or built recently, also guarding {@link #global} and {@link #buildTable}.
+     */
+    private static final Map<Job<?,?>,TracTicketIndex> JOBS = new WeakHashMap<Job<?,?>,TracTicketIndex>();
+    private static TracTicketIndex global;
+    private static TracBuildTable buildTable;
+
+    private static final Logger LOGGER = Logger.getLogger(TracTicketIndex.class.getName());
+
+    private static final int ADD = 1, REMOVE = 2;
+
+    private static final int[] EMPTY = new int[0];
+
+    /**
+     * Changed whenever the layout of the index file or the journal changes.
+     */
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * Changes kept in the journal before they are merged into the index file.
+     */
+    static final int COMPACT_THRESHOLD = 256;
+}
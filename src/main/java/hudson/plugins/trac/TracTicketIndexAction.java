@@ -0,0 +1,173 @@
+package hudson.plugins.trac;
+
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Job;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link Action} to be added to the job top page to find the builds that
+ * refer to a Trac ticket, through the {@link TracTicketIndex} of the job
+ * and, if it is enabled, the global one.
+ *
+ * <p>
+ * Only the indexes are read: the builds are listed by number, without
+ * loading their records.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class TracTicketIndexAction implements Action {
+    private final AbstractProject<?,?> job;
+
+    TracTicketIndexAction(AbstractProject<?,?> job) {
+        this.job = job;
+    }
+
+    public AbstractProject<?,?> getJob() {
+        return job;
+    }
+
+    public String getIconFileName() {
+        return "search.png";
+    }
+
+    public String getDisplayName() {
+        return "Builds by Trac ticket";
+    }
+
+    public String getUrlName() {
+        return "tracTickets";
+    }
+
+    /**
+     * Gets the numbers of the builds of this job that refer to a ticket.
+     *
+     * @param ticket
+     *      the ticket number, with or without '#'.
+     * @return newest first, empty if the ticket isn't a number.
+     */
+    public List<Integer> getBuilds(String ticket) {
+        int id = parse(ticket);
+        if (id<0)
+            return Collections.emptyList();
+        try {
+            int[] numbers = TracTicketIndex.of(job).get(id);
+            List<Integer> r = new ArrayList<Integer>(numbers.length);
+            for (int i=numbers.length-1; i>=0; i--)
+                r.add(numbers[i]);
+            return r;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the Trac ticket index of "+job, e);
+            return Collections.emptyList();
+        }
+    }
+
+    public boolean isGlobalEnabled() {
+        return TracTicketIndex.isGlobalEnabled();
+    }
+
+    /**
+     * Gets the builds of all the jobs that refer to a ticket, if the global index is enabled,
+     * leaving out those of the jobs the current user may not read.
+     *
+     * @return newest first, empty if the ticket isn't a number.
+     */
+    public List<BuildRef> getGlobalBuilds(String ticket) {
+        int id = parse(ticket);
+        if (id<0 || !isGlobalEnabled())
+            return Collections.emptyList();
+        try {
+            return getBuilds(TracTicketIndex.getGlobal().get(id), TracTicketIndex.getBuildTable(), JOBS);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the global Trac ticket index", e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Gets the builds with the given ids in the table, newest first, leaving out
+     * those of the jobs that are gone or that the current user may not read.
+     */
+    static List<BuildRef> getBuilds(int[] ids, TracBuildTable table, Jobs jobs) {
+        List<BuildRef> r = new ArrayList<BuildRef>(ids.length);
+        for (int i=ids.length-1; i>=0; i--) {
+            Item j = jobs.get(table.getJob(ids[i]));
+            if (j!=null && j.hasPermission(Item.READ))
+                r.add(new BuildRef(j, table.getNumber(ids[i])));
+        }
+        return r;
+    }
+
+    /**
+     * Finds the jobs the global index refers to.
+     */
+    interface Jobs {
+        /**
+         * @return null if there is no such job.
+         */
+        Item get(String fullName);
+    }
+
+    /**
+     * Finds the jobs of this Jenkins.
+     */
+    static final Jobs JOBS = new Jobs() {
+        public Item get(String fullName) {
+            return Hudson.getInstance().getItemByFullName(fullName, Job.class);
+        }
+    };
+
+    /**
+     * @return -1 if it isn't a ticket number.
+     */
+    static int parse(String ticket) {
+        if (ticket==null)
+            return -1;
+        ticket = ticket.trim();
+        if (ticket.startsWith("#"))
+            ticket = ticket.substring(1);
+        try {
+            return Integer.parseInt(ticket);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A build of some job, known by its number.
+     */
+    public static final class BuildRef {
+        private final Item job;
+        private final int number;
+
+        BuildRef(Item job, int number) {
+            this.job = job;
+            this.number = number;
+        }
+
+        public Item getJob() {
+            return job;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * URL of the build, relative to the context path.
+         */
+        public String getUrl() {
+            return job.getUrl()+number+'/';
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(TracTicketIndexAction.class.getName());
+}
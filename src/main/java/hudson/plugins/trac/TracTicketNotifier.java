@@ -0,0 +1,130 @@
+package hudson.plugins.trac;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Hudson;
+import hudson.model.Result;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Notifier;
+import hudson.tasks.Publisher;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Comments on the Trac tickets that the changelog of a build refers to,
+ * with the number, result and URL of the build.
+ *
+ * <p>
+ * Tickets are found with the grammar of {@link TracLinkAnnotator}, through
+ * {@link TracReferences}. The comments are only put on the disk-backed
+ * {@link TracTicketUpdateQueue}, which sends them in the background, so
+ * the build completes without waiting for Trac.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class TracTicketNotifier extends Notifier {
+
+    @DataBoundConstructor
+    public TracTicketNotifier() {
+    }
+
+    public BuildStepMonitor getRequiredMonitorService() {
+        return BuildStepMonitor.NONE;
+    }
+
+    @Override
+    public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) {
+        TracProjectProperty tpp = TracProjectProperty.of(build.getProject());
+        if(tpp==null)
+            return true; // not configured
+
+        int[] tickets = TracReferences.of(build.getChangeSet()).getTickets();
+        if (tickets.length==0)
+            return true;
+        String line = comment(build, Hudson.getInstance().getRootUrl());
+        try {
+            TracTicketUpdateQueue queue = DescriptorImpl.getQueue();
+            for (int id : tickets)
+                queue.add(tpp.tracWebsite, id, line);
+            listener.getLogger().println("Commenting on Trac tickets "+Arrays.toString(tickets));
+        } catch (IOException e) {
+            listener.getLogger().println("Failed to queue the comments on Trac tickets "+Arrays.toString(tickets));
+            e.printStackTrace(listener.getLogger());
+        }
+        return true;
+    }
+
+    /**
+     * Renders the line of a comment telling about a build, in Trac wiki syntax.
+     *
+     * @param rootUrl
+     *      of Jenkins, null if it isn't configured.
+     */
+    static String comment(AbstractBuild<?,?> build, String rootUrl) {
+        StringBuilder buf = new StringBuilder(" * ");
+        String name = build.getFullDisplayName();
+        if (rootUrl!=null)
+            buf.append('[').append(rootUrl).append(build.getUrl()).append(' ').append(name.replace(']', ')')).append(']');
+        else
+            buf.append(name);
+        Result result = build.getResult();
+        return buf.append(": ").append(result==null ? Result.SUCCESS : result).toString();
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+        public DescriptorImpl() {
+            super(TracTicketNotifier.class);
+            getQueue(); // send what was left waiting before the restart
+        }
+
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Comment on the Trac tickets referenced in the changes";
+        }
+
+        static synchronized TracTicketUpdateQueue getQueue() {
+            if (queue==null)
+                queue = new TracTicketUpdateQueue(new File(Hudson.getInstance().getRootDir(), "trac-ticket-comments"),
+                        UPDATE_WINDOW, RETRY_DELAY, MAX_ATTEMPTS, TracTicketUpdateQueue.RPC, SCHEDULER);
+            return queue;
+        }
+
+        private static TracTicketUpdateQueue queue;
+
+        /**
+         * Milliseconds to wait for more builds to comment on the same ticket,
+         * so that their lines are sent as one comment.
+         */
+        public static final long UPDATE_WINDOW = Long.getLong(TracTicketNotifier.class.getName()+".updateWindow", 60*1000L);
+
+        /**
+         * Milliseconds to wait before sending a failed comment again the first
+         * time; the delay doubles after every further failure.
+         */
+        public static final long RETRY_DELAY = Long.getLong(TracTicketNotifier.class.getName()+".retryDelay", 30*1000L);
+
+        /**
+         * Most times a comment is sent before it is given up on.
+         */
+        public static final int MAX_ATTEMPTS = Integer.getInteger(TracTicketNotifier.class.getName()+".maxAttempts", 8);
+
+        private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+    }
+}
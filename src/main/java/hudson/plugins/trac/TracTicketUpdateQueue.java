@@ -0,0 +1,386 @@
+package hudson.plugins.trac;
+
+import hudson.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Comments that builds leave on Trac tickets, waiting to be sent.
+ *
+ * <p>
+ * Every ticket with comments waiting has a file in the queue directory, named
+ * after the ticket number and the MD5 digest of the site URL, and written
+ * before {@link #add(String, int, String)} returns, so that the comments survive
+ * a restart: the files are read back when the queue is created. A file is only
+ * deleted once Trac took its comments, so a comment whose update was on its way
+ * when Jenkins stopped may be sent twice.
+ *
+ * <p>
+ * The lines added for the same ticket of the same site within {@link #window}
+ * milliseconds of the first one are sent as one comment, so that the builds of
+ * several jobs fixing the same ticket don't flood it with comments. Lines added
+ * while a comment is being sent are sent in the next one. At most {@link #MAX_LINES}
+ * lines wait for a ticket besides those being sent, and if sending them fails, at
+ * most that many are kept in all; the oldest are dropped beyond that.
+ *
+ * <p>
+ * A comment that fails because Trac can't be reached is tried again after a delay
+ * doubling from {@link #backoff} milliseconds, at most {@link #maxAttempts} times.
+ * A fault returned by Trac, such as a ticket that doesn't exist or a missing
+ * permission, isn't tried again, and neither is a call Trac refuses with HTTP 401
+ * or 403 for a wrong password or a user without the <tt>XML_RPC</tt> permission.
+ * Either way the comments of the ticket are dropped with a warning in the log
+ * once they are given up on.
+ *
+ * <p>
+ * Nothing here waits for Trac: comments are sent by the batching {@link TracRpcClient},
+ * which reports back through its callback.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TracTicketUpdateQueue {
+    private final File dir;
+    private final long window;
+    private final long backoff;
+    private final int maxAttempts;
+    private final Sender sender;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Tickets with comments waiting, guarded by this.
+     */
+    private final Map<Key,Pending> pending = new HashMap<Key,Pending>();
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Sends comments for a queue.
+     */
+    interface Sender {
+        /**
+         * Starts commenting on a ticket, and tells the given callback once it is done.
+         * Must not wait for Trac.
+         */
+        void update(String url, int id, String comment, TracRpcClient.Callback<TracTicket> callback);
+    }
+
+    /**
+     * Comments through the shared {@link TracRpcClient} of the site, without
+     * notifying the people following the ticket.
+     */
+    static final Sender RPC = new Sender() {
+        public void update(String url, int id, String comment, TracRpcClient.Callback<TracTicket> callback) {
+            try {
+                TracProjectProperty.DescriptorImpl.getSite(url).getRpcClient()
+                        .updateTicket(id, comment, null, false, callback);
+            } catch (Exception e) {
+                callback.failed(e);
+            }
+        }
+    };
+
+    /**
+     * Creates the queue, and schedules the comments left waiting in the directory.
+     *
+     * @param window
+     *      Milliseconds to wait for more lines for the same ticket.
+     * @param backoff
+     *      Milliseconds to wait before trying a failed comment the first time.
+     */
+    TracTicketUpdateQueue(File dir, long window, long backoff, int maxAttempts, Sender sender,
+            ScheduledExecutorService scheduler) {
+        this.dir = dir;
+        this.window = window;
+        this.backoff = backoff;
+        this.maxAttempts = maxAttempts;
+        this.sender = sender;
+        this.scheduler = scheduler;
+
+        File[] files = dir.listFiles();
+        if (files==null)
+            return;
+        synchronized (this) {
+            for (File f : files) {
+                if (!f.getName().endsWith(SUFFIX))
+                    continue;
+                try {
+                    Pending p = load(f);
+                    pending.put(p.key, p);
+                    schedule(p, window);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to read the Trac ticket comments waiting in "+f, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a line to the next comment on a ticket.
+     *
+     * @throws IOException
+     *      if it can't be written to disk, in which case it isn't added.
+     */
+    synchronized void add(String url, int id, String line) throws IOException {
+        Key key = new Key(url, id);
+        Pending p = pending.get(key);
+        boolean fresh = p==null;
+        if (fresh)
+            p = new Pending(key, new File(dir, "ticket-"+id+"-"+Util.getDigestOf(url)+SUFFIX));
+        p.lines.add(line);
+        trim(p);
+        try {
+            save(p);
+        } catch (IOException e) {
+            p.lines.remove(p.lines.size()-1);
+            throw e;
+        }
+        if (fresh) {
+            pending.put(key, p);
+            schedule(p, window);
+        }
+    }
+
+    private void send(Pending p) {
+        StringBuilder comment = new StringBuilder();
+        synchronized (this) {
+            if (p.sending>0 || pending.get(p.key)!=p)
+                return;
+            p.sending = p.lines.size();
+            for (String line : p.lines) {
+                if (comment.length()>0)
+                    comment.append('\n');
+                comment.append(line);
+            }
+        }
+        sender.update(p.key.url, p.key.id, comment.toString(), p);
+    }
+
+    /**
+     * Drops the oldest lines of a ticket beyond {@link #MAX_LINES}, keeping those being sent.
+     */
+    private void trim(Pending p) {
+        int excess = p.lines.size()-p.sending-MAX_LINES;
+        if (excess>0) {
+            p.lines.subList(p.sending, p.sending+excess).clear();
+            dropped.addAndGet(excess);
+        }
+    }
+
+    private void schedule(Pending p, long delay) {
+        scheduler.schedule(p, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Number of tickets with comments waiting.
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Gets the lines waiting for a ticket.
+     */
+    synchronized List<String> getLines(String url, int id) {
+        Pending p = pending.get(new Key(url, id));
+        return p==null ? Collections.<String>emptyList() : new ArrayList<String>(p.lines);
+    }
+
+    /**
+     * Number of comments Trac took.
+     */
+    long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * Number of times a comment was tried again.
+     */
+    long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * Number of lines given up on.
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * The comments waiting for one ticket.
+     */
+    private final class Pending implements Runnable, TracRpcClient.Callback<TracTicket> {
+        final Key key;
+        final File file;
+        final List<String> lines = new ArrayList<String>();
+        int attempts;
+        /**
+         * Number of {@link #lines} being sent, 0 if none are.
+         */
+        int sending;
+
+        Pending(Key key, File file) {
+            this.key = key;
+            this.file = file;
+        }
+
+        public void run() {
+            send(this);
+        }
+
+        public void completed(TracTicket ticket) {
+            sent.incrementAndGet();
+            synchronized (TracTicketUpdateQueue.this) {
+                lines.subList(0, sending).clear();
+                sending = 0;
+                attempts = 0;
+                if (lines.isEmpty()) {
+                    remove(this);
+                    return;
+                }
+                saveQuietly(this);
+                schedule(this, window);
+            }
+        }
+
+        public void failed(Throwable cause) {
+            synchronized (TracTicketUpdateQueue.this) {
+                sending = 0;
+                trim(this);     // together with the lines added while they were being sent
+                attempts++;
+                if (isFinal(cause) || attempts>=maxAttempts) {
+                    LOGGER.log(Level.WARNING, "Gave up commenting on ticket #"+key.id+" of "+key.url
+                            +" after "+attempts+" attempts: "+lines, cause);
+                    dropped.addAndGet(lines.size());
+                    remove(this);
+                    return;
+                }
+                retries.incrementAndGet();
+                saveQuietly(this);
+                schedule(this, Math.min(backoff<<Math.min(attempts-1, 30), MAX_BACKOFF));
+            }
+        }
+    }
+
+    /**
+     * Whether sending a comment again won't help after it failed for the given cause.
+     */
+    private static boolean isFinal(Throwable cause) {
+        return cause instanceof TracRpcException
+                || cause instanceof TracHttpException && ((TracHttpException)cause).isDenied();
+    }
+
+    private void remove(Pending p) {
+        pending.remove(p.key);
+        if (!p.file.delete() && p.file.exists())
+            LOGGER.warning("Failed to delete "+p.file+", its comments will be sent again");
+    }
+
+    private void saveQuietly(Pending p) {
+        try {
+            save(p);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write the Trac ticket comments waiting in "+p.file, e);
+        }
+    }
+
+    private void save(Pending p) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Failed to create "+dir);
+        File tmp = new File(dir, p.file.getName()+".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(p.key.url);
+            out.writeInt(p.key.id);
+            out.writeInt(p.attempts);
+            out.writeInt(p.lines.size());
+            for (String line : p.lines)
+                out.writeUTF(line);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(p.file)) {
+            p.file.delete();
+            if (!tmp.renameTo(p.file))
+                throw new IOException("Failed to rename "+tmp+" to "+p.file);
+        }
+    }
+
+    private Pending load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt()!=FORMAT_VERSION)
+                throw new IOException("Unknown format");
+            Pending p = new Pending(new Key(in.readUTF(), in.readInt()), file);
+            p.attempts = in.readInt();
+            int n = in.readInt();
+            for (int i=0; i<n; i++)
+                p.lines.add(in.readUTF());
+            return p;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final class Key {
+        private final String url;
+        private final int id;
+
+        Key(String url, int id) {
+            this.url = url;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return url.hashCode()*31+id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key that = (Key) o;
+            return id==that.id && url.equals(that.url);
+        }
+    }
+
+    private static final String SUFFIX = ".bin";
+
+    /**
+     * Changed whenever the layout of the files changes.
+     */
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * Most lines kept for one ticket; the oldest are dropped beyond that.
+     */
+    static final int MAX_LINES = 50;
+
+    /**
+     * Longest delay before trying a failed comment again, in milliseconds.
+     */
+    private static final long MAX_BACKOFF = 60*60*1000L;
+
+    private static final Logger LOGGER = Logger.getLogger(TracTicketUpdateQueue.class.getName());
+}
@@ -0,0 +1,155 @@
+package hudson.plugins.trac;
+
+import hudson.util.FormValidation;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Checks whether a Trac website answers, for the validation of the website
+ * form fields.
+ *
+ * <p>
+ * The outcome for a URL is kept for a while, as every configuration page
+ * showing the URL checks it again, and a check that is already running is
+ * waited for instead of being started a second time, so that opening the
+ * pages of many jobs at once sends Trac one request per URL.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TracUrlChecker {
+    /**
+     * Connect and read timeout of a check, in milliseconds.
+     */
+    private final int timeout;
+    /**
+     * How long the outcome of a check is kept, in milliseconds.
+     */
+    private final long ttl;
+
+    private final ConcurrentMap<String,Check> checks = new ConcurrentHashMap<String,Check>();
+
+    TracUrlChecker(int timeout, long ttl) {
+        this.timeout = timeout;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Checks the given Trac website, or gets the outcome of a recent or
+     * running check of it.
+     */
+    FormValidation check(URL url) {
+        final String key = url.toExternalForm();
+        Check c;
+        while (true) {
+            long now = System.currentTimeMillis();
+            c = checks.get(key);
+            if (c!=null && !c.isExpired(now))
+                break;
+            Check fresh = new Check(url, now);
+            if (c==null ? checks.putIfAbsent(key, fresh)==null : checks.replace(key, c, fresh)) {
+                prune(now);
+                c = fresh;
+                c.run();
+                break;
+            }
+            // another thread started a check in the meantime, use that one
+        }
+        return c.getOutcome();
+    }
+
+    /**
+     * Drops the expired outcomes once there are many, so that URLs that were
+     * only typed halfway don't pile up.
+     */
+    private void prune(long now) {
+        if (checks.size()<=MAX_CHECKS)
+            return;
+        for (Iterator<Check> it = checks.values().iterator(); it.hasNext(); )
+            if (it.next().isExpired(now))
+                it.remove();
+    }
+
+    /**
+     * One check of a URL, run by the first thread asking for it.
+     */
+    private final class Check extends FutureTask<FormValidation> {
+        private final long started;
+
+        Check(final URL url, long started) {
+            super(new Callable<FormValidation>() {
+                public FormValidation call() {
+                    return probe(url);
+                }
+            });
+            this.started = started;
+        }
+
+        boolean isExpired(long now) {
+            return isDone() && now-started>=ttl;
+        }
+
+        FormValidation getOutcome() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        return FormValidation.warning("Failed to check the Trac website: "+e.getCause());
+                    }
+                }
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sends one request to the Trac website.
+     */
+    FormValidation probe(URL url) {
+        try {
+            URLConnection con = url.openConnection();
+            con.setConnectTimeout(timeout);
+            con.setReadTimeout(timeout);
+            if (!(con instanceof HttpURLConnection))
+                return FormValidation.ok();
+            HttpURLConnection http = (HttpURLConnection) con;
+            try {
+                int code = http.getResponseCode();
+                if (code==HttpURLConnection.HTTP_NOT_FOUND)
+                    return FormValidation.error("No Trac website found at "+url+" (HTTP 404)");
+                if (code>=500 || code<0)
+                    return FormValidation.warning("The Trac website at "+url+" answers with HTTP "+code);
+                return FormValidation.ok();
+            } finally {
+                http.disconnect();
+            }
+        } catch (UnknownHostException e) {
+            return FormValidation.error("Unknown host "+url.getHost());
+        } catch (SocketTimeoutException e) {
+            return FormValidation.warning("The Trac website at "+url+" did not answer within "+timeout+" ms");
+        } catch (IOException e) {
+            return FormValidation.error("Unable to connect to "+url+": "+e.getMessage());
+        }
+    }
+
+    /**
+     * Number of outcomes kept before the expired ones are dropped.
+     */
+    private static final int MAX_CHECKS = 256;
+}
@@ -0,0 +1,237 @@
+package hudson.plugins.trac;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Writes XML-RPC requests and reads XML-RPC responses, the wire format of the
+ * Trac XmlRpcPlugin.
+ *
+ * <p>
+ * Responses are read with a streaming parser straight from the connection,
+ * so that a large <tt>system.multicall</tt> response is never held as text
+ * or as a document tree, only as the values it is made of.
+ *
+ * <p>
+ * Values map to Java as follows: <tt>int</tt> and <tt>i4</tt> to {@link Integer},
+ * <tt>boolean</tt> to {@link Boolean}, <tt>double</tt> to {@link Double},
+ * <tt>string</tt> to {@link String}, <tt>dateTime.iso8601</tt> to {@link Date},
+ * <tt>struct</tt> to a {@link Map} and <tt>array</tt> to a {@link List}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TracXmlRpc {
+    private TracXmlRpc() {}
+
+    /**
+     * Writes the request calling the given method.
+     */
+    static StringBuilder writeCall(StringBuilder buf, String method, List<?> params) {
+        buf.append("<?xml version='1.0' encoding='UTF-8'?><methodCall><methodName>");
+        escape(buf, method);
+        buf.append("</methodName><params>");
+        for (Object p : params) {
+            buf.append("<param>");
+            writeValue(buf, p);
+            buf.append("</param>");
+        }
+        return buf.append("</params></methodCall>");
+    }
+
+    static void writeValue(StringBuilder buf, Object v) {
+        buf.append("<value>");
+        if (v instanceof String) {
+            buf.append("<string>");
+            escape(buf, (String)v);
+            buf.append("</string>");
+        } else if (v instanceof Integer) {
+            buf.append("<int>").append(v).append("</int>");
+        } else if (v instanceof Boolean) {
+            buf.append("<boolean>").append((Boolean)v ? '1' : '0').append("</boolean>");
+        } else if (v instanceof Double) {
+            buf.append("<double>").append(v).append("</double>");
+        } else if (v instanceof Date) {
+            buf.append("<dateTime.iso8601>").append(dateFormat().format((Date)v)).append("</dateTime.iso8601>");
+        } else if (v instanceof Map) {
+            buf.append("<struct>");
+            for (Map.Entry<?,?> e : ((Map<?,?>)v).entrySet()) {
+                buf.append("<member><name>");
+                escape(buf, String.valueOf(e.getKey()));
+                buf.append("</name>");
+                writeValue(buf, e.getValue());
+                buf.append("</member>");
+            }
+            buf.append("</struct>");
+        } else if (v instanceof Collection) {
+            buf.append("<array><data>");
+            for (Object o : (Collection<?>)v)
+                writeValue(buf, o);
+            buf.append("</data></array>");
+        } else {
+            throw new IllegalArgumentException("Can't send "+(v==null ? "null" : v.getClass().getName())+" over XML-RPC");
+        }
+        buf.append("</value>");
+    }
+
+    private static void escape(StringBuilder buf, String s) {
+        for (int i=0; i<s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+            case '&':   buf.append("&amp;");    break;
+            case '<':   buf.append("&lt;");     break;
+            case '>':   buf.append("&gt;");     break;
+            case '\r':  buf.append("&#13;");    break;
+            default:
+                if (ch<0x20 && ch!='\t' && ch!='\n')
+                    continue;   // not allowed in XML 1.0
+                buf.append(ch);
+            }
+        }
+    }
+
+    /**
+     * Reads a response.
+     *
+     * @return the value it returned.
+     * @throws TracRpcException
+     *      if it is a fault.
+     */
+    static Object readResponse(InputStream in) throws IOException {
+        try {
+            XMLStreamReader r = FACTORY.createXMLStreamReader(in);
+            try {
+                r.nextTag();
+                expect(r, "methodResponse");
+                r.nextTag();
+                if (r.getLocalName().equals("fault")) {
+                    r.nextTag();
+                    throw toException(readValue(r));
+                }
+                expect(r, "params");
+                r.nextTag();
+                expect(r, "param");
+                r.nextTag();
+                return readValue(r);
+            } finally {
+                r.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed XML-RPC response: "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Turns a fault struct into an exception.
+     */
+    static TracRpcException toException(Object fault) {
+        if (!(fault instanceof Map))
+            return new TracRpcException(0, String.valueOf(fault));
+        Map<?,?> m = (Map<?,?>)fault;
+        Object code = m.get("faultCode");
+        return new TracRpcException(code instanceof Integer ? (Integer)code : 0, String.valueOf(m.get("faultString")));
+    }
+
+    /**
+     * Reads the value the reader is at the start tag of, leaving it at its end tag.
+     */
+    private static Object readValue(XMLStreamReader r) throws XMLStreamException, IOException {
+        expect(r, "value");
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            int event = r.next();
+            if (event==XMLStreamConstants.END_ELEMENT)
+                return text.toString();    // no type means string
+            if (event==XMLStreamConstants.CHARACTERS || event==XMLStreamConstants.CDATA
+                    || event==XMLStreamConstants.SPACE)
+                text.append(r.getText());
+            if (event==XMLStreamConstants.START_ELEMENT)
+                break;
+        }
+
+        String type = r.getLocalName();
+        Object v;
+        if (type.equals("struct")) {
+            Map<String,Object> m = new LinkedHashMap<String,Object>();
+            while (r.nextTag()==XMLStreamConstants.START_ELEMENT) {
+                expect(r, "member");
+                r.nextTag();
+                expect(r, "name");
+                String name = r.getElementText();
+                r.nextTag();
+                m.put(name, readValue(r));
+                r.nextTag();    // </member>
+            }
+            v = m;
+        } else if (type.equals("array")) {
+            List<Object> l = new ArrayList<Object>();
+            r.nextTag();
+            expect(r, "data");
+            while (r.nextTag()==XMLStreamConstants.START_ELEMENT)
+                l.add(readValue(r));
+            r.nextTag();    // </array>
+            v = l;
+        } else if (type.equals("nil")) {
+            r.nextTag();
+            v = null;
+        } else {
+            v = toValue(type, r.getElementText().trim());
+        }
+        r.nextTag();    // </value>
+        return v;
+    }
+
+    private static Object toValue(String type, String text) throws IOException {
+        try {
+            if (type.equals("string"))
+                return text;
+            if (type.equals("int") || type.equals("i4"))
+                return Integer.valueOf(text);
+            if (type.equals("boolean"))
+                return text.equals("1");
+            if (type.equals("double"))
+                return Double.valueOf(text);
+            if (type.equals("dateTime.iso8601"))
+                return dateFormat().parse(text);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed XML-RPC "+type+": "+text);
+        } catch (ParseException e) {
+            throw new IOException("Malformed XML-RPC "+type+": "+text);
+        }
+        return text;   // base64 and extensions, which Trac doesn't send for tickets
+    }
+
+    private static void expect(XMLStreamReader r, String name) throws IOException {
+        if (!r.isStartElement() || !r.getLocalName().equals(name))
+            throw new IOException("Malformed XML-RPC response: expected <"+name+"> at "+r.getLocation());
+    }
+
+    /**
+     * The format Trac sends and expects dates in, always in UTC.
+     */
+    private static SimpleDateFormat dateFormat() {
+        SimpleDateFormat f = new SimpleDateFormat("yyyyMMdd'T'HH:mm:ss");
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return f;
+    }
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+}
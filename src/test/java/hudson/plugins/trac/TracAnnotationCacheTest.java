@@ -0,0 +1,63 @@
+package hudson.plugins.trac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import hudson.MarkupText;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TracAnnotationCache}.
+ */
+public class TracAnnotationCacheTest {
+
+    private static final TracAnnotationCache.Annotation EMPTY =
+            new TracAnnotationCache.Annotation("", Collections.<TracLinkSpan>emptyList(), new String[0]);
+
+    @Test
+    public void testHitsAndMisses() {
+        TracAnnotationCache cache = new TracAnnotationCache(10);
+        assertNull(cache.get("http://trac/", "Fixed #1"));
+        cache.put("http://trac/", "Fixed #1", EMPTY);
+        assertNotNull(cache.get("http://trac/", "Fixed #1"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testChangedWebsiteMisses() {
+        TracAnnotationCache cache = new TracAnnotationCache(10);
+        cache.put("http://trac/", "Fixed #1", EMPTY);
+        assertNull(cache.get("http://other-trac/", "Fixed #1"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        TracAnnotationCache cache = new TracAnnotationCache(2);
+        cache.put("http://trac/", "a", EMPTY);
+        cache.put("http://trac/", "b", EMPTY);
+        cache.get("http://trac/", "a");
+        cache.put("http://trac/", "c", EMPTY);
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("http://trac/", "a"));
+        assertNull(cache.get("http://trac/", "b"));
+        assertNotNull(cache.get("http://trac/", "c"));
+    }
+
+    @Test
+    public void testRepeatedAnnotationUsesCache() {
+        TracLinkAnnotator annotator = new TracLinkAnnotator();
+        MarkupText first = new MarkupText("Fixed #1 in r2");
+        annotator.annotate("http://trac/", first);
+        MarkupText second = new MarkupText("Fixed #1 in r2");
+        annotator.annotate("http://trac/", second);
+
+        assertEquals(first.toString(false), second.toString(false));
+        assertEquals(1, annotator.getCacheMissCount());
+        assertEquals(1, annotator.getCacheHitCount());
+    }
+}
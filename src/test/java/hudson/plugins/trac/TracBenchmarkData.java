@@ -0,0 +1,107 @@
+package hudson.plugins.trac;
+
+import hudson.plugins.git.GitChangeSet;
+import hudson.scm.SubversionChangeLogSet.LogEntry;
+import hudson.scm.SubversionChangeLogSet.Path;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic commit messages and changesets for the benchmarks.
+ */
+public class TracBenchmarkData {
+
+    /**
+     * Number of paths in the synthetic changesets.
+     */
+    static final int PATHS = 10000;
+
+    /**
+     * Number of messages in a corpus.
+     */
+    static final int MESSAGES = 100;
+
+    private static final String[] PROSE = {
+        "Refactored", "the", "connection", "handling", "so", "that", "idle", "sockets", "are",
+        "closed", "after", "a", "timeout", "and", "added", "tests", "for", "it.", "Also", "updated",
+        "documentation", "to", "describe", "new", "configuration", "options,", "see", "notes."
+    };
+
+    private static final String[] LINKS = {
+        "#1234", "ticket:42", "r1507", "[1508]", "r12:15", "changeset:77", "report:3", "{4}",
+        "WikiStart", "wiki:TracLinks", "milestone:1.0", "comment:ticket:12:3", "trac:#5",
+        "trac:ticket:9", "#T100", "[T200]", "log:@10:20"
+    };
+
+    static String[] messages(String corpus) {
+        Random rnd = new Random(corpus.hashCode());
+        String[] messages = new String[MESSAGES];
+        for (int i=0; i<messages.length; i++) {
+            if (corpus.equals("short"))
+                messages[i] = "Fixed #" + (1000+i);
+            else if (corpus.equals("long"))
+                messages[i] = message(rnd, 400, 0.01);
+            else if (corpus.equals("linkDense"))
+                messages[i] = message(rnd, 60, 0.5);
+            else if (corpus.equals("linkFree"))
+                messages[i] = message(rnd, 60, 0);
+            else
+                throw new IllegalArgumentException(corpus);
+        }
+        return messages;
+    }
+
+    private static String message(Random rnd, int words, double linkRatio) {
+        StringBuilder buf = new StringBuilder();
+        for (int i=0; i<words; i++) {
+            if (i>0)
+                buf.append(i%15==0 ? '\n' : ' ');
+            if (rnd.nextDouble()<linkRatio)
+                buf.append(LINKS[rnd.nextInt(LINKS.length)]);
+            else
+                buf.append(PROSE[rnd.nextInt(PROSE.length)]);
+        }
+        return buf.toString();
+    }
+
+    private static String path(int i) {
+        return "trunk/module" + (i%50) + "/src/main/java/org/example/pkg" + (i%200) + "/Class" + i + ".java";
+    }
+
+    private static String action(int i) {
+        return i%10==0 ? "A" : i%10==1 ? "D" : "M";
+    }
+
+    static LogEntry svnChangeSet(int paths) {
+        LogEntry entry = new LogEntry();
+        entry.setRevision(123456);
+        entry.setMsg("Merged the release branch, see #1234");
+        for (int i=0; i<paths; i++) {
+            Path path = new Path();
+            path.setValue("/" + path(i));
+            path.setAction(action(i));
+            entry.addPath(path);
+        }
+        return entry;
+    }
+
+    static GitChangeSet gitChangeSet(int paths) {
+        List<String> lines = new ArrayList<String>();
+        lines.add("commit 396fc230a3db05c427737aa5c2eb7856ba72b05d");
+        lines.add("tree 196333547f8b9a5fcc8b1fffe4accb01da42c5a6");
+        lines.add("parent f28f125f4cc3e5f6a32daee6a26f36f7b788b8ff");
+        lines.add("author Jane Doe <jane@example.org> 1277411790 +0200");
+        lines.add("committer Jane Doe <jane@example.org> 1277411790 +0200");
+        lines.add("");
+        lines.add("    Merged the release branch, see #1234");
+        lines.add("");
+        for (int i=0; i<paths; i++) {
+            String action = action(i);
+            lines.add(":100644 100644 3f28ad75f5ecd5e0ea9659362e2eef18951bd451 2e0756cd853dccac638486d6aab0e74bc2ef4041 "
+                    + action + "\t" + path(i));
+        }
+        return new GitChangeSet(lines, false);
+    }
+}
@@ -0,0 +1,24 @@
+package hudson.plugins.trac;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of this plugin with the GC profiler, so that the
+ * report shows the bytes allocated per operation next to ops/s.
+ *
+ * <p>
+ * Started by <code>mvn -Pbenchmark test</code>; any JMH command line option
+ * can be passed through the <code>benchmark.args</code> property, e.g.
+ * <code>-Dbenchmark.args="-f 1 TracLinkAnnotatorBenchmark"</code>.
+ */
+public class TracBenchmarks {
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
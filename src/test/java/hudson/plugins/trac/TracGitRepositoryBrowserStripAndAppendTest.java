@@ -7,6 +7,7 @@ import hudson.plugins.git.GitChangeSet.Path;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import org.junit.Test;
@@ -50,6 +51,20 @@ public class TracGitRepositoryBrowserStripAndAppendTest {
 	}
 
 
+    /**
+     * Browser whose project maps "src/test/" to another browser path as well.
+     */
+    private final TracGitRepositoryBrowser mappingBrowser = new TracGitRepositoryBrowser() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected TracProjectProperty getTracProjectProperty(GitChangeSet changeSet) {
+            return new TracProjectProperty(TRAC_URL, STRIP_FROM_PATH, APPEND_TO_URL,
+                    Arrays.asList(new TracPathMapping("src/test/", "tests")));
+        }
+    };
+
+
         
     /**
      * Test method for
@@ -79,9 +94,9 @@ public class TracGitRepositoryBrowserStripAndAppendTest {
     public void testGetDiffLinkPath() throws IOException, SAXException {
         final HashMap<String, Path> pathMap = TracGitHelper.createPathMap("rawchangelog");
         final Path path1 = pathMap.get("src/main/java/hudson/plugins/git/browser/GithubWeb.java");
-        assertEquals(TRAC_URL + "/changeset/396fc230a3db05c427737aa5c2eb7856ba72b05d/main/java/hudson/plugins/git/browser/GithubWeb.java", tracGitBrowser.getDiffLink(path1).toString());
+        assertEquals(TRAC_URL + "/changeset/396fc230a3db05c427737aa5c2eb7856ba72b05d#file0", tracGitBrowser.getDiffLink(path1).toString());
         final Path path2 = pathMap.get("src/test/java/hudson/plugins/git/browser/GithubWebTest.java");
-        assertEquals(TRAC_URL + "/changeset/396fc230a3db05c427737aa5c2eb7856ba72b05d/test/java/hudson/plugins/git/browser/GithubWebTest.java", tracGitBrowser.getDiffLink(path2).toString());
+        assertEquals(TRAC_URL + "/changeset/396fc230a3db05c427737aa5c2eb7856ba72b05d#file1", tracGitBrowser.getDiffLink(path2).toString());
         final Path path3 = pathMap.get("src/test/resources/hudson/plugins/git/browser/rawchangelog-with-deleted-file");
         assertNull("Do not return a diff link for added files.", tracGitBrowser.getDiffLink(path3));
     }
@@ -141,4 +156,17 @@ public class TracGitRepositoryBrowserStripAndAppendTest {
         assertEquals(TRAC_URL + "/browser/" + APPEND_TO_URL + "bar?rev=b547aa10c3f06710c6fdfcdb2a9149c81662923b", String.valueOf(fileLink));
     }
 
+    /**
+     * The longest matching prefix decides what is stripped and appended,
+     * the strip and append fields apply to the other paths.
+     */
+    @Test
+    public void testGetFileLinkPathWithMappings() throws IOException, SAXException {
+        final HashMap<String, Path> pathMap = TracGitHelper.createPathMap("rawchangelog");
+        assertEquals(TRAC_URL + "/browser/tests/java/hudson/plugins/git/browser/GithubWebTest.java?rev=396fc230a3db05c427737aa5c2eb7856ba72b05d",
+                String.valueOf(mappingBrowser.getFileLink(pathMap.get("src/test/java/hudson/plugins/git/browser/GithubWebTest.java"))));
+        assertEquals(TRAC_URL + "/browser/" + APPEND_TO_URL + "main/java/hudson/plugins/git/browser/GithubWeb.java?rev=396fc230a3db05c427737aa5c2eb7856ba72b05d",
+                String.valueOf(mappingBrowser.getFileLink(pathMap.get("src/main/java/hudson/plugins/git/browser/GithubWeb.java"))));
+    }
+
 }
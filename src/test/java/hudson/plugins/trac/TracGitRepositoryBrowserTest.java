@@ -1,13 +1,19 @@
 package hudson.plugins.trac;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import hudson.plugins.git.GitChangeSet;
 import hudson.plugins.git.GitChangeSet.Path;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 
 import org.junit.Test;
 import org.xml.sax.SAXException;
@@ -31,7 +37,7 @@ public class TracGitRepositoryBrowserTest {
      * TracGitRepositoryBrowser instance used for testing.
      * The getTracWebURL function is mocked to easily return the testing URL. 
      */
-	private final TracGitRepositoryBrowser tracGitBrowser = new TracGitRepositoryBrowserMock();
+	private final TracGitRepositoryBrowserMock tracGitBrowser = new TracGitRepositoryBrowserMock();
     
     /**
      * Mock implementation to return the test URL.
@@ -39,12 +45,38 @@ public class TracGitRepositoryBrowserTest {
     private class TracGitRepositoryBrowserMock extends TracGitRepositoryBrowser {
         private static final long serialVersionUID = 1L;
 
+		int lookups;
+
 		@Override
 		protected TracProjectProperty getTracProjectProperty(GitChangeSet changeSet) {
+			lookups++;
 			return new TracProjectProperty(TRAC_URL, null, null);
 	    }
 	}
 
+    /**
+     * Browser of a Git repository hosted by a Trac site with several repositories.
+     */
+    private class MultiRepositoryBrowserMock extends TracGitRepositoryBrowser {
+        private static final long serialVersionUID = 1L;
+
+        private final TracProjectProperty property = new TracProjectProperty(TRAC_URL, null, null, null, Arrays.asList(
+                new TracRepository("git://git/one.git", "one"), new TracRepository("git://git/two.git", "two")));
+
+        int urlLookups;
+
+        @Override
+        protected TracProjectProperty getTracProjectProperty(GitChangeSet changeSet) {
+            return property;
+        }
+
+        @Override
+        protected Collection<String> getScmUrls(GitChangeSet changeSet) {
+            urlLookups++;
+            return Arrays.asList("git://git/two.git");
+        }
+    }
+
 
         
     /**
@@ -73,9 +105,9 @@ public class TracGitRepositoryBrowserTest {
     public void testGetDiffLinkPath() throws IOException, SAXException {
         final HashMap<String, Path> pathMap = TracGitHelper.createPathMap("rawchangelog");
         final Path path1 = pathMap.get("src/main/java/hudson/plugins/git/browser/GithubWeb.java");
-        assertEquals(TRAC_URL + "/changeset/396fc230a3db05c427737aa5c2eb7856ba72b05d/src/main/java/hudson/plugins/git/browser/GithubWeb.java", tracGitBrowser.getDiffLink(path1).toString());
+        assertEquals(TRAC_URL + "/changeset/396fc230a3db05c427737aa5c2eb7856ba72b05d#file0", tracGitBrowser.getDiffLink(path1).toString());
         final Path path2 = pathMap.get("src/test/java/hudson/plugins/git/browser/GithubWebTest.java");
-        assertEquals(TRAC_URL + "/changeset/396fc230a3db05c427737aa5c2eb7856ba72b05d/src/test/java/hudson/plugins/git/browser/GithubWebTest.java", tracGitBrowser.getDiffLink(path2).toString());
+        assertEquals(TRAC_URL + "/changeset/396fc230a3db05c427737aa5c2eb7856ba72b05d#file1", tracGitBrowser.getDiffLink(path2).toString());
         final Path path3 = pathMap.get("src/test/resources/hudson/plugins/git/browser/rawchangelog-with-deleted-file");
         assertNull("Do not return a diff link for added files.", tracGitBrowser.getDiffLink(path3));
     }
@@ -132,4 +164,123 @@ public class TracGitRepositoryBrowserTest {
         assertEquals(TRAC_URL + "/browser/bar?rev=b547aa10c3f06710c6fdfcdb2a9149c81662923b", String.valueOf(fileLink));
     }
 
+    /**
+     * The project property is looked up once for all the links of a changeset,
+     * and again once a project has been saved.
+     */
+    @Test
+    public void testPropertyResolvedOncePerChangeSet() throws IOException, SAXException {
+        final GitChangeSet changeSet = TracGitHelper.createChangeSet("rawchangelog");
+        for (final Path path : changeSet.getPaths()) {
+            tracGitBrowser.getDiffLink(path);
+            tracGitBrowser.getFileLink(path);
+        }
+        tracGitBrowser.getChangeSetLink(changeSet);
+        assertEquals(1, tracGitBrowser.lookups);
+
+        TracProjectProperty.GENERATION.incrementAndGet();
+        tracGitBrowser.getChangeSetLink(changeSet);
+        assertEquals(2, tracGitBrowser.lookups);
+    }
+
+    /**
+     * Test method for {@link TracGitRepositoryBrowser#getLinks(GitChangeSet)}.
+     * The links made at once are the same as the ones made one by one.
+     */
+    @Test
+    public void testGetLinks() throws IOException, SAXException {
+        final GitChangeSet changeSet = TracGitHelper.createChangeSet("rawchangelog");
+        final TracChangeSetLinks links = tracGitBrowser.getLinks(changeSet);
+        assertEquals(tracGitBrowser.getChangeSetLink(changeSet).toString(), links.getChangeSetLink());
+        final HashMap<String, Path> pathMap = TracGitHelper.createPathMap("rawchangelog");
+        final Iterator<TracChangeSetLinks.PathLinks> it = links.getPaths().iterator();
+        for (final String name : new String[] {
+                "src/main/java/hudson/plugins/git/browser/GithubWeb.java",
+                "src/test/java/hudson/plugins/git/browser/GithubWebTest.java",
+                "src/test/resources/hudson/plugins/git/browser/rawchangelog-with-deleted-file"}) {
+            final Path path = pathMap.get(name);
+            final TracChangeSetLinks.PathLinks pathLinks = it.next();
+            assertEquals(name, pathLinks.getPath());
+            assertEquals(path.getEditType(), pathLinks.getEditType());
+            assertEquals(String.valueOf(tracGitBrowser.getFileLink(path)), pathLinks.getFileLink());
+            assertEquals(String.valueOf(tracGitBrowser.getDiffLink(path)), String.valueOf(pathLinks.getDiffLink()));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * The #fileN anchors number the paths in the order git and Trac list them,
+     * by the code points of their names.
+     */
+    @Test
+    public void testDiffLinkAnchorsFollowPathOrder() throws IOException {
+        final String[] names = {"b", "a/b", "a.txt", "\uD834\uDD1E.txt", "\uFB01.txt", "A"};
+        final List<String> lines = new ArrayList<String>();
+        lines.add("commit 396fc230a3db05c427737aa5c2eb7856ba72b05d");
+        for (final String name : names)
+            lines.add(":100644 100644 3f28ad75f5ecd5e0ea9659362e2eef18951bd451 2e0756cd853dccac638486d6aab0e74bc2ef4041 M\t" + name);
+        final HashMap<String, Path> pathMap = new HashMap<String, Path>();
+        for (final Path path : new GitChangeSet(lines, false).getPaths())
+            pathMap.put(path.getPath(), path);
+
+        final String[] order = {"A", "a.txt", "a/b", "b", "\uFB01.txt", "\uD834\uDD1E.txt"};
+        for (int i = 0; i < order.length; i++)
+            assertEquals(TRAC_URL + "/changeset/396fc230a3db05c427737aa5c2eb7856ba72b05d#file" + i,
+                    tracGitBrowser.getDiffLink(pathMap.get(order[i])).toString());
+    }
+
+    /**
+     * Trac numbers the #fileN anchors by the paths in the repository, whatever
+     * the mappings strip from them, even if two of them strip to the same path.
+     */
+    @Test
+    public void testDiffLinkAnchorsWithSeveralMappings() throws IOException {
+        final TracGitRepositoryBrowser browser = new TracGitRepositoryBrowser() {
+            private static final long serialVersionUID = 1L;
+
+            private final TracProjectProperty property = new TracProjectProperty(TRAC_URL, null, null, Arrays.asList(
+                    new TracPathMapping("lib/", "vendor"), new TracPathMapping("src/", "main")));
+
+            @Override
+            protected TracProjectProperty getTracProjectProperty(GitChangeSet changeSet) {
+                return property;
+            }
+        };
+        final String[] names = {"src/b.txt", "lib/z.txt", "src/a.txt", "lib/a.txt"};
+        final List<String> lines = new ArrayList<String>();
+        lines.add("commit 396fc230a3db05c427737aa5c2eb7856ba72b05d");
+        for (final String name : names)
+            lines.add(":100644 100644 3f28ad75f5ecd5e0ea9659362e2eef18951bd451 2e0756cd853dccac638486d6aab0e74bc2ef4041 M\t" + name);
+        final GitChangeSet changeSet = new GitChangeSet(lines, false);
+        final HashMap<String, Path> pathMap = new HashMap<String, Path>();
+        for (final Path path : changeSet.getPaths())
+            pathMap.put(path.getPath(), path);
+
+        final String[] order = {"lib/a.txt", "lib/z.txt", "src/a.txt", "src/b.txt"};
+        final Iterator<TracChangeSetLinks.PathLinks> links = browser.getLinks(changeSet).getPaths().iterator();
+        for (int i = 0; i < order.length; i++) {
+            final String diffLink = TRAC_URL + "/changeset/396fc230a3db05c427737aa5c2eb7856ba72b05d#file" + i;
+            assertEquals(diffLink, browser.getDiffLink(pathMap.get(order[i])).toString());
+            final TracChangeSetLinks.PathLinks link = links.next();
+            assertEquals(order[i], link.getPath());
+            assertEquals(diffLink, link.getDiffLink());
+        }
+    }
+
+    /**
+     * Links go into the repository the Git remote maps to, which is only resolved once.
+     */
+    @Test
+    public void testMultipleRepositories() throws IOException, SAXException {
+        final MultiRepositoryBrowserMock browser = new MultiRepositoryBrowserMock();
+        final HashMap<String, Path> pathMap = TracGitHelper.createPathMap("rawchangelog");
+        final Path path = pathMap.get("src/main/java/hudson/plugins/git/browser/GithubWeb.java");
+        assertEquals(TRAC_URL + "/changeset/396fc230a3db05c427737aa5c2eb7856ba72b05d/two", browser.getChangeSetLink(path.getChangeSet()).toString());
+        assertEquals(TRAC_URL + "/changeset/396fc230a3db05c427737aa5c2eb7856ba72b05d/two#file0", browser.getDiffLink(path).toString());
+        assertEquals(TRAC_URL + "/browser/two/src/main/java/hudson/plugins/git/browser/GithubWeb.java?rev=396fc230a3db05c427737aa5c2eb7856ba72b05d",
+                browser.getFileLink(path).toString());
+        browser.getChangeSetLink(TracGitHelper.createChangeSet("rawchangelog-with-deleted-file"));
+        assertEquals(1, browser.urlLookups);
+    }
+
 }
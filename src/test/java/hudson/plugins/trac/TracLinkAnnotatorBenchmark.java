@@ -0,0 +1,62 @@
+package hudson.plugins.trac;
+
+import hudson.MarkupText;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Throughput of {@link TracLinkAnnotator} over typical commit messages.
+ * The annotator doesn't cache, so that every message is scanned, and is shared
+ * by all the benchmark threads like the one Jenkins instance is; compare
+ * {@link #annotate()} with {@link #annotateContended()} to see how it scales.
+ * Run with <code>mvn -Pbenchmark test</code>, see {@link TracBenchmarks}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TracLinkAnnotatorBenchmark {
+
+    private static final String TRAC_URL = "https://trac.example.org/project/";
+
+    @Param({"short", "long", "linkDense", "linkFree"})
+    public String corpus;
+
+    private String[] messages;
+
+    private static final TracLinkAnnotator ANNOTATOR = new TracLinkAnnotator(0);
+
+    @Setup
+    public void setUp() {
+        messages = TracBenchmarkData.messages(corpus);
+    }
+
+    @Benchmark
+    public Object annotate() {
+        return annotateAll();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object annotateContended() {
+        return annotateAll();
+    }
+
+    private Object annotateAll() {
+        MarkupText last = null;
+        for (String message : messages) {
+            last = new MarkupText(message);
+            ANNOTATOR.annotate(TRAC_URL, last);
+        }
+        return last.toString(false);
+    }
+}
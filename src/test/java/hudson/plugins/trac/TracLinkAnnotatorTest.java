@@ -3,6 +3,20 @@ package hudson.plugins.trac;
 import org.junit.Test;
 
 import hudson.MarkupText;
+import hudson.scm.ChangeLogSet.Entry;
+import hudson.scm.SubversionChangeLogSet.LogEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
 
@@ -79,6 +93,178 @@ public class TracLinkAnnotatorTest  {
         assertAnnotatedTextEquals("#101 for [303]: Text", ticketUrl + " for " + changesetUrl + ": Text");
     }
 
+    @Test
+    public void testLogRangeTakesPrecedenceOverChangeset() {
+        assertAnnotatedTextEquals("r5:6 and r5",
+                "<a href='" + TRAC_URL + "log/?rev=6&stop_ver=5'>r5:6</a> and <a href='" + TRAC_URL + "changeset/5'>r5</a>");
+        assertAnnotatedTextEquals("[5:6] and [5]",
+                "<a href='" + TRAC_URL + "log/?rev=6&stop_ver=5'>[5:6]</a> and <a href='" + TRAC_URL + "changeset/5'>[5]</a>");
+    }
+
+    @Test
+    public void testLinksAfterColonAreNotAnnotated() {
+        assertAnnotatedTextEquals("x:#1 :ticket:2 :changeset:3 :WikiLink",
+                "<a href='" + TRAC_URL + "search?q=x%3A%231'>x:#1</a> :ticket:2 :changeset:3 :WikiLink");
+    }
+
+    @Test
+    public void testLinksNotOnWordBoundary() {
+        assertAnnotatedTextEquals("a#1 r55x [1]b", "a#1 r55x [1]b");
+    }
+
+    @Test
+    public void testOverlappingLinks() {
+        assertAnnotatedTextEquals("comment:ticket:1:2",
+                "<a href='" + TRAC_URL + "ticket/1#comment:2'><a href='" + TRAC_URL + "search?q=comment%3Aticket%3A1'>comment:ticket:1</a>:2</a>");
+    }
+
+    @Test
+    public void testBatchAnnotation() {
+        assertBatchAnnotation(10);
+    }
+
+    @Test
+    public void testParallelBatchAnnotation() {
+        int threshold = TracLinkAnnotator.PARALLEL_THRESHOLD;
+        try {
+            TracLinkAnnotator.PARALLEL_THRESHOLD = 7;
+            assertBatchAnnotation(100);
+        } finally {
+            TracLinkAnnotator.PARALLEL_THRESHOLD = threshold;
+        }
+    }
+
+    /**
+     * Many threads annotating through one uncached annotator get what a single thread gets.
+     */
+    @Test(timeout = 60000)
+    public void testConcurrentAnnotation() throws Exception {
+        final List<String> messages = new ArrayList<String>();
+        for (String corpus : new String[] {"short", "long", "linkDense", "linkFree"})
+            messages.addAll(Arrays.asList(TracBenchmarkData.messages(corpus)));
+        final TracLinkAnnotator annotator = new TracLinkAnnotator(0);
+        final List<String> expected = new ArrayList<String>();
+        for (String message : messages)
+            expected.add(annotate(annotator, message));
+
+        final int threads = 8;
+        final CyclicBarrier start = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                results.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        start.await();
+                        int mismatches = 0;
+                        for (int round = 0; round < 20; round++) {
+                            for (int i = 0; i < messages.size(); i++) {
+                                int j = (i + offset * 37) % messages.size();
+                                if (!expected.get(j).equals(annotate(annotator, messages.get(j))))
+                                    mismatches++;
+                            }
+                        }
+                        return mismatches;
+                    }
+                }));
+            }
+            for (Future<Integer> r : results)
+                assertEquals(0, r.get().intValue());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTicketStatus() {
+        RecordingLoader loader = new RecordingLoader();
+        TracTicketCache tickets = new TracTicketCache(10, 60000, 60000, loader);
+        TracLinkAnnotator annotator = new TracLinkAnnotator();
+
+        MarkupText text = new MarkupText("Fixed #1 and #2, see r5");
+        annotator.annotate(TRAC_URL, text, tickets);
+        assertEquals("not known yet, so rendered plain",
+                "Fixed <a href='" + TRAC_URL + "ticket/1'>#1</a> and <a href='" + TRAC_URL + "ticket/2'>#2</a>, see <a href='"
+                + TRAC_URL + "changeset/5'>r5</a>", text.toString(false));
+        assertEquals(Arrays.asList(1, 2), loader.ids);
+
+        loader.callbacks.get(0).completed(ticket(1, "closed", "fixed", "Crash on <empty> 'input'"));
+        loader.callbacks.get(1).completed(ticket(2, "new", null, "Slow"));
+        text = new MarkupText("Fixed #1 and #2, see r5");
+        annotator.annotate(TRAC_URL, text, tickets);
+        assertEquals("Fixed <a href='" + TRAC_URL + "ticket/1' class='ticket closed'"
+                + " title='Crash on &lt;empty&gt; &#39;input&#39; (closed: fixed)' style='text-decoration:line-through'>#1</a>"
+                + " and <a href='" + TRAC_URL + "ticket/2' class='ticket new' title='Slow (new)'>#2</a>, see <a href='"
+                + TRAC_URL + "changeset/5'>r5</a>", text.toString(false));
+        assertEquals(2, loader.ids.size());
+    }
+
+    @Test
+    public void testBatchAnnotationPrefetchesAllTicketsFirst() {
+        RecordingLoader loader = new RecordingLoader();
+        TracTicketCache tickets = new TracTicketCache(100, 60000, 60000, loader);
+        List<LogEntry> entries = new ArrayList<LogEntry>();
+        for (int i = 0; i < 20; i++) {
+            LogEntry entry = new LogEntry();
+            entry.setMsg("Fixed #" + i + " and comment:ticket:" + (i % 5) + ":1");
+            entries.add(entry);
+        }
+        new TracLinkAnnotator().annotate(TRAC_URL, entries, tickets);
+
+        assertEquals("one load per ticket, started before any link was rendered", 20, loader.ids.size());
+        assertEquals(20, tickets.getLoadCount());
+        assertEquals(20, tickets.getPrefetchLoadCount());
+        assertEquals("only the links rendered count", 0, tickets.getHitCount()+tickets.getStaleHitCount());
+    }
+
+    /**
+     * Remembers the tickets asked for, without ever loading them by itself.
+     */
+    private static final class RecordingLoader implements TracTicketCache.Loader {
+        final List<Integer> ids = new ArrayList<Integer>();
+        final List<TracRpcClient.Callback<TracTicket>> callbacks = new ArrayList<TracRpcClient.Callback<TracTicket>>();
+
+        public synchronized void load(String url, int id, TracRpcClient.Callback<TracTicket> callback) {
+            ids.add(id);
+            callbacks.add(callback);
+        }
+    }
+
+    private static TracTicket ticket(int id, String status, String resolution, String summary) {
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("status", status);
+        attributes.put("resolution", resolution);
+        attributes.put("summary", summary);
+        return new TracTicket(id, attributes);
+    }
+
+    private static String annotate(TracLinkAnnotator annotator, String message) {
+        MarkupText text = new MarkupText(message);
+        annotator.annotate(TRAC_URL, text);
+        return text.toString(false);
+    }
+
+    private void assertBatchAnnotation(int size) {
+        List<LogEntry> entries = new ArrayList<LogEntry>();
+        for (int i = 0; i < size; i++) {
+            LogEntry entry = new LogEntry();
+            entry.setMsg("Fixed #" + i + " in r" + (100 + i));
+            entries.add(entry);
+        }
+
+        Map<Entry, MarkupText> annotated = new TracLinkAnnotator().annotate(TRAC_URL, entries);
+
+        assertEquals(size, annotated.size());
+        Iterator<Map.Entry<Entry, MarkupText>> it = annotated.entrySet().iterator();
+        for (int i = 0; i < size; i++) {
+            Map.Entry<Entry, MarkupText> e = it.next();
+            assertEquals(entries.get(i), e.getKey());
+            assertEquals("Fixed <a href='" + TRAC_URL + "ticket/" + i + "'>#" + i + "</a> in <a href='"
+                    + TRAC_URL + "changeset/" + (100 + i) + "'>r" + (100 + i) + "</a>", e.getValue().toString(false));
+        }
+    }
+
     private void assertAnnotatedTextEquals(String originalText, String expectedAnnotatedText) {
         MarkupText markupText = new MarkupText(originalText);
 
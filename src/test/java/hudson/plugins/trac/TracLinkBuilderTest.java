@@ -0,0 +1,42 @@
+package hudson.plugins.trac;
+
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+
+public class TracLinkBuilderTest {
+
+    @Test
+    public void testAbsoluteLinks() throws MalformedURLException {
+        for (String website : new String[] {"https://trac/", "http://user@trac:8080/a/b/", "https://trac/a/./b/../c/"}) {
+            URL base = new URL(website);
+            TracLinkBuilder links = new TracLinkBuilder(website);
+            assertEquals(new URL(base, base.getPath() + "changeset/1/x/../y").toString(),
+                    TracLinkBuilder.toURL(links.absolute("changeset/1/x/../y")).toString());
+        }
+    }
+
+    @Test
+    public void testRelativeLinksAreNormalized() throws MalformedURLException {
+        TracLinkBuilder links = new TracLinkBuilder("https://trac/a/./b/../c/");
+        assertEquals("https://trac/a/c/browser/y#L1", links.resolve("browser/x/../y#L1").toString());
+    }
+
+    @Test
+    public void testQueryOfWebsiteIsKept() throws MalformedURLException {
+        TracLinkBuilder links = new TracLinkBuilder("https://trac/t?project=p");
+        assertEquals("https://trac/tbrowser/a?project=p&rev=1",
+                links.appendQuery(links.absolute("browser/a"), "rev", "1").toString());
+        links = new TracLinkBuilder("https://trac/t/");
+        assertEquals("https://trac/t/browser/a?rev=1",
+                links.appendQuery(links.absolute("browser/a"), "rev", "1").toString());
+    }
+
+    @Test(expected = MalformedURLException.class)
+    public void testInvalidWebsite() throws MalformedURLException {
+        new TracLinkBuilder("trac");
+    }
+}
@@ -0,0 +1,98 @@
+package hudson.plugins.trac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests for the pre-scan of {@link TracLinkMatcher}.
+ */
+public class TracLinkMatcherTest {
+
+    private final TracLinkMatcher matcher = new TracLinkMatcher(TracLinkAnnotator.MARKUPS, Integer.MAX_VALUE);
+
+    @Test
+    public void testMessageWithoutTriggersIsSkipped() {
+        assertTrue(matcher.find("Fixed a typo in the readme.").isEmpty());
+        assertTrue(matcher.find("").isEmpty());
+        assertEquals(2, matcher.getMessageCount());
+        assertEquals(2, matcher.getSkippedMessageCount());
+        assertEquals(0, matcher.getSkippedMarkupCount());
+    }
+
+    @Test
+    public void testImpossibleMarkupsAreSkipped() {
+        // only the ticket and InterTrac ticket markups need nothing but '#' and digits
+        assertEquals(1, matcher.find("Fixes #12").size());
+        assertEquals(0, matcher.getSkippedMessageCount());
+        assertEquals(TracLinkAnnotator.MARKUPS.length-2, matcher.getSkippedMarkupCount());
+    }
+
+    @Test
+    public void testCharClasses() {
+        assertEquals(0, TracLinkMatcher.charClasses("nothing here, really."));
+        assertEquals(TracLinkMatcher.DIGIT|TracLinkMatcher.REV, TracLinkMatcher.charClasses("r5"));
+        assertEquals(TracLinkMatcher.CAMEL, TracLinkMatcher.charClasses("WikiLink"));
+        assertEquals(0, TracLinkMatcher.charClasses("Wiki ALLCAPS"));
+        assertEquals(TracLinkMatcher.HASH|TracLinkMatcher.BRACKET|TracLinkMatcher.BRACE|TracLinkMatcher.COLON,
+                TracLinkMatcher.charClasses("#[{:"));
+    }
+
+    @Test
+    public void testMessageLengthLimit() {
+        TracLinkMatcher limited = new TracLinkMatcher(TracLinkAnnotator.MARKUPS, 10);
+        assertEquals(1, limited.find("#1 and then #2").size());
+        assertEquals(1, limited.getTruncatedMessageCount());
+        // a link starting within the limit is found completely
+        assertEquals(10, limited.find("12345 #123456789").get(0).end - 6);
+    }
+
+    @Test
+    public void testTimeBudget() {
+        assertNull(matcher.find(repeat("#1 ", 300000), 1));
+        assertEquals(1, matcher.getTimedOutMessageCount());
+    }
+
+    // the stress tests below took minutes, if they finished at all, with a backtracking scan
+
+    private static final int HUGE = 500 * 1024;
+
+    @Test(timeout = 10000)
+    public void testLongWordWithColon() {
+        assertTrue(matcher.find(repeat("a", HUGE) + ":").isEmpty());
+        assertTrue(matcher.find(repeat("a.b-c_", HUGE / 6) + ":#").isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void testManyShortWordsWithColons() {
+        assertTrue(matcher.find(repeat("x:", HUGE / 2)).isEmpty());
+        assertEquals(HUGE / 7 / 2, matcher.find(repeat("x:wiki:", HUGE / 7)).size());
+    }
+
+    @Test(timeout = 10000)
+    public void testLongCamelCaseRun() {
+        assertTrue(matcher.find(repeat("Aa", HUGE / 2) + "1").isEmpty());
+        assertEquals(1, matcher.find(repeat("Aa", HUGE / 2)).size());
+        assertTrue(matcher.find(repeat("AaB", HUGE / 3)).isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void testLongNumbers() {
+        assertTrue(matcher.find("r" + repeat("1", HUGE) + "x:").isEmpty());
+        assertTrue(matcher.find("[" + repeat("1", HUGE) + ":").isEmpty());
+        assertTrue(matcher.find(repeat("[1", HUGE / 2) + ":").isEmpty());
+        assertEquals(1, matcher.find(repeat("#", HUGE) + "1").size());
+        assertEquals(1, matcher.find("#" + repeat("1", HUGE)).size());
+    }
+
+    private static String repeat(String s, int times) {
+        char[] chars = new char[s.length() * times];
+        for (int i = 0; i < times; i++)
+            s.getChars(0, s.length(), chars, i * s.length());
+        return new String(chars);
+    }
+}
@@ -0,0 +1,97 @@
+package hudson.plugins.trac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import hudson.scm.SubversionChangeLogSet.LogEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TracLinkSpanFile}.
+ */
+public class TracLinkSpanFileTest {
+
+    private static final String TRAC_URL = "http://trac/";
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("trac", "build");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        TracLinkSpanFile.compute(changes("Fixed #1 in r2", "See WikiStart and trac:ticket:3", "No links."), TRAC_URL).save(dir);
+
+        TracLinkSpanFile loaded = TracLinkSpanFile.load(dir, TRAC_URL);
+        assertSpansEqual("Fixed #1 in r2", loaded);
+        assertSpansEqual("See WikiStart and trac:ticket:3", loaded);
+        assertTrue(loaded.get("No links.").isEmpty());
+        assertNull("unknown message", loaded.get("Fixed #2"));
+    }
+
+    @Test
+    public void testStaleForOtherWebsite() throws IOException {
+        TracLinkSpanFile.compute(changes("Fixed #1"), TRAC_URL).save(dir);
+        assertNull(TracLinkSpanFile.load(dir, "http://other-trac/"));
+    }
+
+    @Test
+    public void testMessagesOverBudgetAreLeftOut() throws IOException {
+        StringBuilder slow = new StringBuilder();
+        for (int i = 0; i < 300000; i++)
+            slow.append("#1 ");
+        TracLinkSpanFile.compute(changes("Fixed #1", slow.toString()), TRAC_URL, 1).save(dir);
+
+        TracLinkSpanFile loaded = TracLinkSpanFile.load(dir, TRAC_URL);
+        assertNull("annotated when viewed", loaded.get(slow.toString()));
+    }
+
+    @Test
+    public void testMissingFile() throws IOException {
+        assertNull(TracLinkSpanFile.load(dir, TRAC_URL));
+    }
+
+    private static void assertSpansEqual(String message, TracLinkSpanFile file) {
+        List<TracLinkSpan> expected = TracLinkAnnotator.MATCHER.find(message);
+        List<TracLinkSpan> actual = file.get(message);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            TracLinkSpan e = expected.get(i), a = actual.get(i);
+            assertEquals(e.kind, a.kind);
+            assertEquals(e.start, a.start);
+            assertEquals(e.end, a.end);
+            for (int g = 0; g <= e.groupCount(); g++)
+                assertEquals(e.group(message, g), a.group(message, g));
+        }
+    }
+
+    private static List<LogEntry> changes(String... messages) {
+        List<LogEntry> entries = new ArrayList<LogEntry>();
+        for (String msg : messages) {
+            LogEntry entry = new LogEntry();
+            entry.setMsg(msg);
+            entries.add(entry);
+        }
+        return entries;
+    }
+}
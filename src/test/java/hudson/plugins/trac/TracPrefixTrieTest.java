@@ -0,0 +1,50 @@
+package hudson.plugins.trac;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TracPrefixTrieTest {
+
+    @Test
+    public void testLongestPrefixWins() {
+        Map<String,String> values = new LinkedHashMap<String,String>();
+        values.put("trunk/", "trunk");
+        values.put("trunk/core/", "core");
+        values.put("trunk/core/src/", "src");
+        values.put("branches/", "branches");
+        TracPrefixTrie<String> trie = new TracPrefixTrie<String>(values);
+
+        assertEquals("src", trie.longestPrefixOf("trunk/core/src/Main.java"));
+        assertEquals("core", trie.longestPrefixOf("trunk/core/pom.xml"));
+        assertEquals("core", trie.longestPrefixOf("trunk/core/"));
+        assertEquals("trunk", trie.longestPrefixOf("trunk/corelib/pom.xml"));
+        assertEquals("branches", trie.longestPrefixOf("branches/1.x/pom.xml"));
+        assertNull(trie.longestPrefixOf("trunk"));
+        assertNull(trie.longestPrefixOf("tags/1.0/pom.xml"));
+        assertNull(trie.longestPrefixOf(""));
+    }
+
+    @Test
+    public void testEmptyPrefixMatchesEverything() {
+        Map<String,String> values = new LinkedHashMap<String,String>();
+        values.put("", "root");
+        values.put("a", "a");
+        TracPrefixTrie<String> trie = new TracPrefixTrie<String>(values);
+
+        assertEquals("root", trie.longestPrefixOf(""));
+        assertEquals("root", trie.longestPrefixOf("b"));
+        assertEquals("a", trie.longestPrefixOf("ab"));
+    }
+
+    @Test
+    public void testNoPrefixes() {
+        TracPrefixTrie<String> trie = new TracPrefixTrie<String>(Collections.<String,String>emptyMap());
+        assertNull(trie.longestPrefixOf("trunk/pom.xml"));
+    }
+}
@@ -0,0 +1,143 @@
+package hudson.plugins.trac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for how {@link TracProjectProperty#of(Item, Configurations)} finds the
+ * configuration of a job, and when it finds it again.
+ */
+public class TracProjectPropertyTest {
+
+    private static final String TRAC_URL = "https://trac/";
+
+    /**
+     * Configurations given to some items, with a default for the others,
+     * counting how often they are looked at.
+     */
+    private static class ConfigurationsMock implements TracProjectProperty.Configurations {
+        final Map<Item,TracProjectProperty> properties = new IdentityHashMap<Item,TracProjectProperty>();
+        TracProjectProperty defaultProperty;
+        int lookups;
+
+        public TracProjectProperty of(Item item) {
+            lookups++;
+            return properties.get(item);
+        }
+
+        public TracProjectProperty getDefault() {
+            return defaultProperty;
+        }
+    }
+
+    private final ConfigurationsMock configurations = new ConfigurationsMock();
+
+    /**
+     * An item in the given group, which is also a group itself,
+     * such as a matrix project or a folder.
+     */
+    private static Item item(final ItemGroup<?> parent) {
+        return (Item) Proxy.newProxyInstance(Item.class.getClassLoader(), new Class<?>[] {Item.class, ItemGroup.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getParent"))
+                            return parent;
+                        if (method.getName().equals("equals"))
+                            return proxy==args[0];
+                        if (method.getName().equals("hashCode"))
+                            return System.identityHashCode(proxy);
+                        if (method.getName().equals("toString"))
+                            return "item@"+System.identityHashCode(proxy);
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static TracProjectProperty property(String url) {
+        return new TracProjectProperty(url, null, null);
+    }
+
+    @Test
+    public void testOwnConfiguration() {
+        Item job = item(null);
+        TracProjectProperty tpp = property(TRAC_URL);
+        configurations.properties.put(job, tpp);
+        configurations.defaultProperty = property("https://default/");
+        assertSame(tpp, TracProjectProperty.of(job, configurations));
+    }
+
+    @Test
+    public void testConfigurationOfTheEnclosingJob() {
+        Item matrix = item(null);
+        Item folder = item((ItemGroup<?>)matrix);
+        Item configuration = item((ItemGroup<?>)folder);
+        TracProjectProperty tpp = property(TRAC_URL);
+        configurations.properties.put(matrix, tpp);
+        configurations.defaultProperty = property("https://default/");
+        assertSame(tpp, TracProjectProperty.of(configuration, configurations));
+        assertEquals("the configuration, the folder passed through, then the matrix", 3, configurations.lookups);
+    }
+
+    @Test
+    public void testGlobalDefault() {
+        Item job = item((ItemGroup<?>)item(null));
+        TracProjectProperty tpp = property("https://default/");
+        configurations.defaultProperty = tpp;
+        assertSame(tpp, TracProjectProperty.of(job, configurations));
+    }
+
+    @Test
+    public void testNoWebsite() {
+        Item job = item(null);
+        configurations.properties.put(job, property(""));
+        assertNull(TracProjectProperty.of(job, configurations));
+        assertNull(TracProjectProperty.of(item(null), configurations));
+    }
+
+    @Test
+    public void testResolvedUntilSaved() {
+        Item job = item(null);
+        TracProjectProperty tpp = property(TRAC_URL);
+        configurations.properties.put(job, tpp);
+        assertSame(tpp, TracProjectProperty.of(job, configurations));
+        assertSame(tpp, TracProjectProperty.of(job, configurations));
+        assertEquals(1, configurations.lookups);
+
+        TracProjectProperty changed = property("https://other/");
+        configurations.properties.put(job, changed);
+        new TracProjectProperty.SaveableListenerImpl().onChange(job, null);
+        assertSame(changed, TracProjectProperty.of(job, configurations));
+        assertEquals(2, configurations.lookups);
+    }
+
+    @Test
+    public void testResolvedAgainOnceCollected() throws InterruptedException {
+        Item job = item(null);
+        configurations.properties.put(job, property(TRAC_URL));
+        WeakReference<TracProjectProperty> ref = new WeakReference<TracProjectProperty>(
+                TracProjectProperty.of(job, configurations));
+        assertEquals(1, configurations.lookups);
+
+        TracProjectProperty replaced = property(TRAC_URL);
+        configurations.properties.put(job, replaced);     // the old one is no longer held by anything
+        for (int i=0; i<50 && ref.get()!=null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("collected", ref.get());
+        assertSame(replaced, TracProjectProperty.of(job, configurations));
+        assertEquals(2, configurations.lookups);
+    }
+}
@@ -0,0 +1,61 @@
+package hudson.plugins.trac;
+
+import org.junit.Test;
+
+import hudson.scm.SubversionChangeLogSet.LogEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TracReferencesTest {
+
+    @Test
+    public void testTickets() {
+        TracReferences r = new TracReferences()
+                .add("Fixes #12 and ticket:3, see comment:ticket:7:2")
+                .add("Follow-up to #3, also #12 again");
+        assertArrayEquals(new int[] {3, 7, 12}, r.getTickets());
+    }
+
+    @Test
+    public void testChangesetsReportsAndMilestones() {
+        TracReferences r = new TracReferences()
+                .add("Reverts r15, [9] and changeset:100; see {4}, report:2 and milestone:1.0")
+                .add("Backport of r15 for milestone:0.9");
+        assertArrayEquals(new int[] {9, 15, 100}, r.getChangesets());
+        assertArrayEquals(new int[] {2, 4}, r.getReports());
+        assertEquals(Arrays.asList("0.9", "1.0"), Arrays.asList(r.getMilestones()));
+    }
+
+    @Test
+    public void testSameGrammarAsAnnotator() {
+        // not on a word boundary, after a colon, a log range, and InterTrac links
+        TracReferences r = new TracReferences()
+                .add("a#1 x:#2 :ticket:3 r5:6 trac:#7 trac:ticket:8 #T9 [T10]");
+        assertTrue(r.isEmpty());
+    }
+
+    @Test
+    public void testNumbersTooLargeForAnInt() {
+        TracReferences r = new TracReferences().add("#2147483647 #2147483648 #99999999999");
+        assertArrayEquals(new int[] {Integer.MAX_VALUE}, r.getTickets());
+    }
+
+    @Test
+    public void testChangeLog() {
+        List<LogEntry> entries = new ArrayList<LogEntry>();
+        for (String msg : new String[] {"Fixed #2", null, "Fixed #1 in r10"}) {
+            LogEntry entry = new LogEntry();
+            entry.setMsg(msg);
+            entries.add(entry);
+        }
+        TracReferences r = TracReferences.of(entries);
+        assertArrayEquals(new int[] {1, 2}, r.getTickets());
+        assertArrayEquals(new int[] {10}, r.getChangesets());
+    }
+}
@@ -0,0 +1,122 @@
+package hudson.plugins.trac;
+
+import hudson.plugins.git.GitChangeSet;
+import hudson.scm.EditType;
+import hudson.scm.SubversionChangeLogSet.LogEntry;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the link generation of {@link TracRepositoryBrowser} and
+ * {@link TracGitRepositoryBrowser} for a changeset with
+ * {@link TracBenchmarkData#PATHS} paths, one by one and all at once with
+ * <code>getLinks</code>, compared with making the same links
+ * by parsing the website URL and resolving the path against it for every link,
+ * the way the browsers used to.
+ * Run with <code>mvn -Pbenchmark test</code>, see {@link TracBenchmarks}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TracRepositoryBrowserBenchmark {
+
+    private static final TracProjectProperty PROPERTY =
+            new TracProjectProperty("https://trac.example.org/project", "/trunk", "repo");
+
+    private final TracRepositoryBrowser svnBrowser = new TracRepositoryBrowser() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected TracProjectProperty getTracProjectProperty(LogEntry changeSet) {
+            return PROPERTY;
+        }
+    };
+
+    private final TracGitRepositoryBrowser gitBrowser = new TracGitRepositoryBrowser() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected TracProjectProperty getTracProjectProperty(GitChangeSet changeSet) {
+            return PROPERTY;
+        }
+    };
+
+    private LogEntry svnChangeSet;
+    private GitChangeSet gitChangeSet;
+
+    @Setup
+    public void setUp() {
+        svnChangeSet = TracBenchmarkData.svnChangeSet(TracBenchmarkData.PATHS);
+        gitChangeSet = TracBenchmarkData.gitChangeSet(TracBenchmarkData.PATHS);
+    }
+
+    @Benchmark
+    public void svnLinks(Blackhole bh) throws IOException {
+        bh.consume(svnBrowser.getChangeSetLink(svnChangeSet));
+        for (hudson.scm.SubversionChangeLogSet.Path path : svnChangeSet.getPaths()) {
+            bh.consume(svnBrowser.getFileLink(path));
+            bh.consume(svnBrowser.getDiffLink(path));
+        }
+    }
+
+    @Benchmark
+    public void gitLinks(Blackhole bh) throws IOException {
+        bh.consume(gitBrowser.getChangeSetLink(gitChangeSet));
+        for (GitChangeSet.Path path : gitChangeSet.getPaths()) {
+            bh.consume(gitBrowser.getFileLink(path));
+            bh.consume(gitBrowser.getDiffLink(path));
+        }
+    }
+
+    @Benchmark
+    public Object svnBulkLinks() throws IOException {
+        return svnBrowser.getLinks(svnChangeSet);
+    }
+
+    @Benchmark
+    public Object gitBulkLinks() throws IOException {
+        return gitBrowser.getLinks(gitChangeSet);
+    }
+
+    @Benchmark
+    public void svnLinksUrlParsing(Blackhole bh) throws IOException {
+        bh.consume(new URL(new URL(PROPERTY.tracWebsite), "changeset/" + svnChangeSet.getRevision()));
+        for (hudson.scm.SubversionChangeLogSet.Path path : svnChangeSet.getPaths()) {
+            String p = strip(path.getValue());
+            bh.consume(new URL(new URL(PROPERTY.tracWebsite), "browser/repo" + p + "#L1"));
+            if (path.getEditType() == EditType.EDIT)
+                bh.consume(new URL(new URL(PROPERTY.tracWebsite), "changeset/" + svnChangeSet.getRevision() + p + "#file0"));
+        }
+    }
+
+    @Benchmark
+    public void gitLinksUrlParsing(Blackhole bh) throws IOException {
+        URL url = new URL(PROPERTY.tracWebsite);
+        bh.consume(new URL(url, url.getPath() + "changeset/" + gitChangeSet.getId()));
+        for (GitChangeSet.Path path : gitChangeSet.getPaths()) {
+            url = new URL(PROPERTY.tracWebsite);
+            String rev = path.getEditType() == EditType.DELETE ? gitChangeSet.getParentCommit() : gitChangeSet.getId();
+            bh.consume(new URL(url, url.getPath() + "browser/repo/" + strip(path.getPath()) + "?rev=" + rev));
+            if (path.getEditType() == EditType.EDIT) {
+                URL changeSet = new URL(url, url.getPath() + "changeset/" + gitChangeSet.getId());
+                bh.consume(new URL(new URL(PROPERTY.tracWebsite), changeSet + "/" + strip(path.getPath())));
+            }
+        }
+    }
+
+    private static String strip(String path) {
+        return path.startsWith(PROPERTY.tracStrippedFromChangesetPath)
+                ? path.substring(PROPERTY.tracStrippedFromChangesetPath.length()) : path;
+    }
+}
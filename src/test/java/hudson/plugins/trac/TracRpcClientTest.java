@@ -0,0 +1,342 @@
+package hudson.plugins.trac;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link TracRpcClient} against an HTTP server standing in for the
+ * XML-RPC interface of Trac. Ticket 404 doesn't exist, the even tickets are
+ * closed, and <tt>/broken/rpc</tt> fails with HTTP 500.
+ */
+public class TracRpcClientTest {
+    private HttpServer server;
+    private final List<String> requests = new CopyOnWriteArrayList<String>();
+    private final List<String> authorizations = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private volatile long delay;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                int now = running.incrementAndGet();
+                try {
+                    while (true) {
+                        int max = maxRunning.get();
+                        if (now<=max || maxRunning.compareAndSet(max, now))
+                            break;
+                    }
+                    String body = read(exchange.getRequestBody());
+                    requests.add(body);
+                    authorizations.add(String.valueOf(exchange.getRequestHeaders().getFirst("Authorization")));
+                    if (delay>0)
+                        Thread.sleep(delay);
+                    if (exchange.getRequestURI().getPath().startsWith("/broken/")) {
+                        exchange.sendResponseHeaders(500, -1);
+                    } else {
+                        byte[] response = respond(body).getBytes("UTF-8");
+                        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+                        exchange.sendResponseHeaders(200, response.length);
+                        OutputStream out = exchange.getResponseBody();
+                        out.write(response);
+                        out.close();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] b = new byte[4096];
+        int n;
+        while ((n=in.read(b))>=0)
+            buf.write(b, 0, n);
+        return buf.toString("UTF-8");
+    }
+
+    private static String respond(String request) {
+        if (request.contains("<methodName>system.getAPIVersion</methodName>"))
+            return "<?xml version='1.0'?><methodResponse><params><param><value><array><data>"
+                    + "<value><int>1</int></value><value><int>1</int></value><value><int>2</int></value>"
+                    + "</data></array></value></param></params></methodResponse>";
+        Matcher m = Pattern.compile("<int>(\\d+)</int>").matcher(request);
+        if (!request.contains("<methodName>system.multicall</methodName>")) {
+            m.find();
+            int id = Integer.parseInt(m.group(1));
+            if (id==404)
+                return "<?xml version='1.0'?><methodResponse><fault>" + fault(404) + "</fault></methodResponse>";
+            return "<?xml version='1.0'?><methodResponse><params><param>" + ticket(id) + "</param></params></methodResponse>";
+        }
+        StringBuilder buf = new StringBuilder("<?xml version='1.0'?>\n<methodResponse>\n<params>\n<param>\n<value><array><data>\n");
+        while (m.find()) {
+            int id = Integer.parseInt(m.group(1));
+            if (id==404)
+                buf.append(fault(404));
+            else
+                buf.append("<value><array><data>").append(ticket(id)).append("</data></array></value>\n");
+        }
+        return buf.append("</data></array></value>\n</param>\n</params>\n</methodResponse>\n").toString();
+    }
+
+    private static String ticket(int id) {
+        return "<value><array><data><value><int>" + id + "</int></value>"
+                + "<value><dateTime.iso8601>20120102T03:04:05</dateTime.iso8601></value>"
+                + "<value><dateTime.iso8601>20120102T03:04:05</dateTime.iso8601></value>"
+                + "<value><struct>"
+                + "<member><name>summary</name><value><string>Fix &lt;b&gt; &amp; co #" + id + "</string></value></member>"
+                + "<member><name>status</name><value><string>" + (id%2==0 ? "closed" : "new") + "</string></value></member>"
+                + "<member><name>owner</name><value>kk</value></member>"
+                + "<member><name>votes</name><value><double>1.5</double></value></member>"
+                + "<member><name>private</name><value><boolean>0</boolean></value></member>"
+                + "</struct></value></data></array></value>";
+    }
+
+    private static String fault(int code) {
+        return "<value><struct><member><name>faultCode</name><value><int>" + code + "</int></value></member>"
+                + "<member><name>faultString</name><value><string>Ticket does not exist.</string></value></member>"
+                + "</struct></value>";
+    }
+
+    private URL endpoint(String path) throws IOException {
+        return new URL("http://127.0.0.1:"+server.getAddress().getPort()+path);
+    }
+
+    @Test
+    public void testGetsAreBatchedIntoOneMulticall() throws Exception {
+        TracRpcClient client = new TracRpcClient(endpoint("/trac/rpc"), null, 200, 100);
+        List<Future<TracTicket>> tickets = new ArrayList<Future<TracTicket>>();
+        for (int id=1; id<=10; id++)
+            tickets.add(client.getTicket(id));
+        Future<TracTicket> missing = client.getTicket(404);
+
+        for (int id=1; id<=10; id++) {
+            TracTicket t = tickets.get(id-1).get(5, TimeUnit.SECONDS);
+            assertEquals(id, t.id);
+            assertEquals("Fix <b> & co #"+id, t.getSummary());
+            assertEquals(id%2==0, t.isClosed());
+            assertEquals("kk", t.getOwner());
+            assertEquals(1.5, t.getAttributes().get("votes"));
+            assertEquals(Boolean.FALSE, t.getAttributes().get("private"));
+        }
+        try {
+            missing.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(404, ((TracRpcException)e.getCause()).getFaultCode());
+        }
+        assertEquals(1, requests.size());
+        assertTrue(requests.get(0).contains("<methodName>system.multicall</methodName>"));
+    }
+
+    @Test
+    public void testFullBatchIsSentRightAway() throws Exception {
+        TracRpcClient client = new TracRpcClient(endpoint("/trac/rpc"), null, 60000, 3);
+        List<Future<TracTicket>> tickets = new ArrayList<Future<TracTicket>>();
+        for (int id=1; id<=3; id++)
+            tickets.add(client.getTicket(id));
+        for (Future<TracTicket> t : tickets)
+            t.get(5, TimeUnit.SECONDS);
+
+        Future<TracTicket> single = client.getTicket(7);
+        client.flush();
+        assertEquals(7, single.get(5, TimeUnit.SECONDS).id);
+        assertEquals(2, requests.size());
+        assertTrue(requests.get(1).contains("<methodName>ticket.get</methodName>"));
+    }
+
+    @Test
+    public void testCallbackIsToldOfTheResult() throws Exception {
+        TracRpcClient client = new TracRpcClient(endpoint("/trac/rpc"), null, 0, 100);
+        final List<Object> results = new CopyOnWriteArrayList<Object>();
+        final CountDownLatch told = new CountDownLatch(2);
+        TracRpcClient.Callback<TracTicket> callback = new TracRpcClient.Callback<TracTicket>() {
+            public void completed(TracTicket result) {
+                results.add(result.id);
+                told.countDown();
+            }
+            public void failed(Throwable cause) {
+                results.add(cause);
+                told.countDown();
+            }
+        };
+        client.getTicket(3, callback).get(5, TimeUnit.SECONDS);
+        try {
+            client.getTicket(404, callback).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            // expected
+        }
+        assertTrue(told.await(5, TimeUnit.SECONDS));
+        assertEquals(3, results.get(0));
+        assertTrue(results.get(1) instanceof TracRpcException);
+    }
+
+    @Test
+    public void testUpdateTicket() throws Exception {
+        TracRpcClient client = new TracRpcClient(endpoint("/trac/rpc"), null, 0, 100);
+        TracTicket t = client.updateTicket(5, "Built in #12 & passed", Collections.singletonMap("keywords", "ci"), false)
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(5, t.id);
+        String request = requests.get(0);
+        assertTrue(request, request.contains("<methodName>ticket.update</methodName>"));
+        assertTrue(request, request.contains("<string>Built in #12 &amp; passed</string>"));
+        assertTrue(request, request.contains("<member><name>keywords</name><value><string>ci</string></value></member>"));
+        assertTrue(request, request.contains("<boolean>0</boolean>"));
+    }
+
+    @Test
+    public void testCall() throws Exception {
+        TracRpcClient client = new TracRpcClient(endpoint("/trac/rpc"), null, 0, 100);
+        assertEquals(Arrays.asList(1, 1, 2), client.call("system.getAPIVersion"));
+        try {
+            client.call("ticket.get", 404);
+            fail();
+        } catch (TracRpcException e) {
+            assertEquals(404, e.getFaultCode());
+            assertEquals("Ticket does not exist.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testHttpError() throws Exception {
+        TracRpcClient client = new TracRpcClient(endpoint("/broken/rpc"), null, 0, 100);
+        try {
+            client.getTicket(1).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("HTTP 500"));
+        }
+        // the connection is still good for the next request
+        assertEquals(Arrays.asList(1, 1, 2), new TracRpcClient(endpoint("/trac/rpc"), null, 0, 100).call("system.getAPIVersion"));
+    }
+
+    @Test
+    public void testLogin() throws Exception {
+        TracRpcClient client = new TracRpcClient("http://127.0.0.1:"+server.getAddress().getPort()+"/trac/", "user", "pass");
+        assertEquals("/trac/login/rpc", client.getEndpoint().getPath());
+        client.call("system.getAPIVersion");
+        assertEquals("Basic dXNlcjpwYXNz", authorizations.get(0));
+    }
+
+    @Test
+    public void testConcurrencyIsBoundedPerHost() throws Exception {
+        delay = 50;
+        final TracRpcClient a = new TracRpcClient(endpoint("/trac/rpc"), null, 0, 100);
+        final TracRpcClient b = new TracRpcClient(endpoint("/other/rpc"), null, 0, 100);
+        List<Thread> threads = new ArrayList<Thread>();
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i=0; i<4*TracRpcClient.MAX_CONNECTIONS; i++) {
+            final TracRpcClient client = i%2==0 ? a : b;
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        client.call("system.getAPIVersion");
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(0, failures.get());
+        assertEquals(4*TracRpcClient.MAX_CONNECTIONS, requests.size());
+        assertTrue("at most "+maxRunning.get(), maxRunning.get()<=TracRpcClient.MAX_CONNECTIONS);
+    }
+
+    @Test
+    public void testCallsJoinTheWaitingBatch() throws Exception {
+        delay = 300;
+        List<Future<TracTicket>> tickets = new ArrayList<Future<TracTicket>>();
+        for (int i=0; i<TracRpcClient.MAX_CONNECTIONS; i++)
+            tickets.add(new TracRpcClient(endpoint("/trac/rpc"), null, 0, 100).getTicket(100+i));
+        Thread.sleep(100);  // all the threads of the host are busy now
+
+        TracRpcClient client = new TracRpcClient(endpoint("/trac/rpc"), null, 0, 100);
+        for (int id=1; id<=5; id++) {
+            tickets.add(client.getTicket(id));
+            Thread.sleep(10);   // each call is flushed on its own
+        }
+        for (Future<TracTicket> t : tickets)
+            t.get(5, TimeUnit.SECONDS);
+        assertEquals(TracRpcClient.MAX_CONNECTIONS+1, requests.size());
+        assertTrue(requests.get(TracRpcClient.MAX_CONNECTIONS).contains("<methodName>system.multicall</methodName>"));
+        assertTrue("at most "+maxRunning.get(), maxRunning.get()<=TracRpcClient.MAX_CONNECTIONS);
+    }
+
+    @Test
+    public void testCallsFailWhenTooManyBatchesAreWaiting() throws Exception {
+        delay = 2000;
+        for (int i=0; i<TracRpcClient.MAX_CONNECTIONS+TracRpcClient.MAX_QUEUED; i++)
+            new TracRpcClient(endpoint("/trac/rpc"), null, 0, 100).getTicket(100+i);
+        Thread.sleep(200);  // the threads of the host are busy, and its queue is full
+
+        TracRpcClient client = new TracRpcClient(endpoint("/trac/rpc"), null, 0, 3);
+        List<Future<TracTicket>> tickets = new ArrayList<Future<TracTicket>>();
+        for (int id=1; id<=10; id++)
+            tickets.add(client.getTicket(id));
+        for (Future<TracTicket> t : tickets) {
+            try {
+                t.get(1, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage().contains("Too many requests"));
+            }
+        }
+    }
+
+    @Test
+    public void testDates() throws Exception {
+        StringBuilder buf = new StringBuilder();
+        TracXmlRpc.writeValue(buf, new Date(0));
+        assertEquals("<value><dateTime.iso8601>19700101T00:00:00</dateTime.iso8601></value>", buf.toString());
+    }
+}
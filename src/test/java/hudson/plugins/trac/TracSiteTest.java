@@ -0,0 +1,29 @@
+package hudson.plugins.trac;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TracSiteTest {
+
+    @Test
+    public void testProjectsShareTheirSite() throws Exception {
+        TracProjectProperty a = new TracProjectProperty("https://trac.example.org/shared", null, null);
+        TracProjectProperty b = new TracProjectProperty("https://trac.example.org/shared/", "/trunk", "repo");
+
+        assertEquals("https://trac.example.org/shared/", a.tracWebsite);
+        assertSame(a.getSite(), b.getSite());
+        assertSame(a.tracWebsite, b.tracWebsite);
+        assertSame(a.getLinkBuilder(), b.getLinkBuilder());
+        assertSame(a.getJobActions(null).iterator().next(), b.getJobActions(null).iterator().next());
+    }
+
+    @Test
+    public void testUnconfigured() {
+        assertNull(TracProjectProperty.DescriptorImpl.getSite(null));
+        assertNull(TracProjectProperty.DescriptorImpl.getSite(""));
+        assertNull(new TracProjectProperty("", null, null).getSite());
+    }
+}
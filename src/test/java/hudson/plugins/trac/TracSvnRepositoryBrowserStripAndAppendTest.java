@@ -7,6 +7,7 @@ import hudson.scm.SubversionChangeLogSet.Path;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import org.junit.Test;
@@ -50,6 +51,18 @@ public class TracSvnRepositoryBrowserStripAndAppendTest {
 	}
 
 
+    /**
+     * Browser whose project maps "/src/test" to another browser path as well.
+     */
+    private final TracRepositoryBrowser mappingBrowser = new TracRepositoryBrowser() {
+        @Override
+        protected TracProjectProperty getTracProjectProperty(LogEntry changeSet) {
+            return new TracProjectProperty(TRAC_URL, STRIP_FROM_PATH, APPEND_TO_URL,
+                    Arrays.asList(new TracPathMapping("/src/test", "tests")));
+        }
+    };
+
+
         
     /**
      * Test method for
@@ -79,9 +92,9 @@ public class TracSvnRepositoryBrowserStripAndAppendTest {
     public void testGetDiffLinkPath() throws IOException, SAXException {
         final HashMap<String, Path> pathMap = TracSvnHelper.createPathMap("changelog_unsorted.xml");
         final Path path1 = pathMap.get("/src/main/java/hudson/plugins/git/browser/GithubWeb.java");
-        assertEquals(TRAC_URL + "/changeset/68100/main/java/hudson/plugins/git/browser/GithubWeb.java#file0", tracGitBrowser.getDiffLink(path1).toString());
+        assertEquals(TRAC_URL + "/changeset/68100#file0", tracGitBrowser.getDiffLink(path1).toString());
         final Path path2 = pathMap.get("/src/test/java/hudson/plugins/git/browser/GithubWebTest.java");
-        assertEquals(TRAC_URL + "/changeset/68100/test/java/hudson/plugins/git/browser/GithubWebTest.java#file0", tracGitBrowser.getDiffLink(path2).toString());
+        assertEquals(TRAC_URL + "/changeset/68100#file1", tracGitBrowser.getDiffLink(path2).toString());
         final Path path3 = pathMap.get("/src/test/resources/hudson/plugins/git/browser/rawchangelog-with-deleted-file");
         assertNull("Do not return a diff link for added files.", tracGitBrowser.getDiffLink(path3));
     }
@@ -140,5 +153,18 @@ public class TracSvnRepositoryBrowserStripAndAppendTest {
         final URL fileLink = tracGitBrowser.getFileLink(path);
         assertEquals(TRAC_URL + "/browser/" + APPEND_TO_URL + "bar#L1", String.valueOf(fileLink));
     }
+
+    /**
+     * The longest matching prefix decides what is stripped and appended,
+     * the strip and append fields apply to the other paths.
+     */
+    @Test
+    public void testGetFileLinkPathWithMappings() throws IOException, SAXException {
+        final HashMap<String, Path> pathMap = TracSvnHelper.createPathMap("changelog_unsorted.xml");
+        assertEquals(TRAC_URL + "/browser/tests/java/hudson/plugins/git/browser/GithubWebTest.java#L1",
+                String.valueOf(mappingBrowser.getFileLink(pathMap.get("/src/test/java/hudson/plugins/git/browser/GithubWebTest.java"))));
+        assertEquals(TRAC_URL + "/browser/" + APPEND_TO_URL + "main/java/hudson/plugins/git/browser/GithubWeb.java#L1",
+                String.valueOf(mappingBrowser.getFileLink(pathMap.get("/src/main/java/hudson/plugins/git/browser/GithubWeb.java"))));
+    }
  
 }
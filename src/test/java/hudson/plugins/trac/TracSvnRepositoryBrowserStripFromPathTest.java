@@ -75,9 +75,9 @@ public class TracSvnRepositoryBrowserStripFromPathTest {
     public void testGetDiffLinkPath() throws IOException, SAXException {
         final HashMap<String, Path> pathMap = TracSvnHelper.createPathMap("changelog_unsorted.xml");
         final Path path1 = pathMap.get("/src/main/java/hudson/plugins/git/browser/GithubWeb.java");
-        assertEquals(TRAC_URL + "/changeset/68100/main/java/hudson/plugins/git/browser/GithubWeb.java#file0", tracGitBrowser.getDiffLink(path1).toString());
+        assertEquals(TRAC_URL + "/changeset/68100#file0", tracGitBrowser.getDiffLink(path1).toString());
         final Path path2 = pathMap.get("/src/test/java/hudson/plugins/git/browser/GithubWebTest.java");
-        assertEquals(TRAC_URL + "/changeset/68100/test/java/hudson/plugins/git/browser/GithubWebTest.java#file0", tracGitBrowser.getDiffLink(path2).toString());
+        assertEquals(TRAC_URL + "/changeset/68100#file1", tracGitBrowser.getDiffLink(path2).toString());
         final Path path3 = pathMap.get("/src/test/resources/hudson/plugins/git/browser/rawchangelog-with-deleted-file");
         assertNull("Do not return a diff link for added files.", tracGitBrowser.getDiffLink(path3));
     }
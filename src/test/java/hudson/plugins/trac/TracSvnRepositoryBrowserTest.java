@@ -1,13 +1,18 @@
 package hudson.plugins.trac;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import hudson.scm.SubversionChangeLogSet.LogEntry;
 import hudson.scm.SubversionChangeLogSet.Path;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 
 import org.junit.Test;
 import org.xml.sax.SAXException;
@@ -29,7 +34,7 @@ public class TracSvnRepositoryBrowserTest {
      * TracGitRepositoryBrowser instance used for testing.
      * The getTracWebURL function is mocked to easily return the testing URL. 
      */
-	private final TracRepositoryBrowser tracSvnBrowser = new TracSvnRepositoryBrowserMock();
+	private final TracSvnRepositoryBrowserMock tracSvnBrowser = new TracSvnRepositoryBrowserMock();
     
     /**
      * Mock implementation to return the test URL.
@@ -37,12 +42,36 @@ public class TracSvnRepositoryBrowserTest {
     private class TracSvnRepositoryBrowserMock extends TracRepositoryBrowser {
         private static final long serialVersionUID = 1L;
 
+		int lookups;
+
 		@Override
 		protected TracProjectProperty getTracProjectProperty(LogEntry changeSet) {
+			lookups++;
 			return new TracProjectProperty(TRAC_URL, null, null);
 	    }
 	}
 
+    /**
+     * Browser of a Subversion repository hosted by a Trac site with several repositories.
+     */
+    private class MultiRepositoryBrowserMock extends TracRepositoryBrowser {
+        private final TracProjectProperty property = new TracProjectProperty(TRAC_URL, null, null, null, Arrays.asList(
+                new TracRepository("https://svn/one", "one"), new TracRepository("https://svn/two/", "/two/")));
+
+        int urlLookups;
+
+        @Override
+        protected TracProjectProperty getTracProjectProperty(LogEntry changeSet) {
+            return property;
+        }
+
+        @Override
+        protected Collection<String> getScmUrls(LogEntry changeSet) {
+            urlLookups++;
+            return Arrays.asList("https://svn/two/trunk");
+        }
+    }
+
 
         
     /**
@@ -71,9 +100,9 @@ public class TracSvnRepositoryBrowserTest {
     public void testGetDiffLinkPath() throws IOException, SAXException {
         final HashMap<String, Path> pathMap = TracSvnHelper.createPathMap("changelog_unsorted.xml");
         final Path path1 = pathMap.get("/src/main/java/hudson/plugins/git/browser/GithubWeb.java");
-        assertEquals(TRAC_URL + "/changeset/68100/src/main/java/hudson/plugins/git/browser/GithubWeb.java#file0", tracSvnBrowser.getDiffLink(path1).toString());
+        assertEquals(TRAC_URL + "/changeset/68100#file0", tracSvnBrowser.getDiffLink(path1).toString());
         final Path path2 = pathMap.get("/src/test/java/hudson/plugins/git/browser/GithubWebTest.java");
-        assertEquals(TRAC_URL + "/changeset/68100/src/test/java/hudson/plugins/git/browser/GithubWebTest.java#file0", tracSvnBrowser.getDiffLink(path2).toString());
+        assertEquals(TRAC_URL + "/changeset/68100#file1", tracSvnBrowser.getDiffLink(path2).toString());
         final Path path3 = pathMap.get("/src/test/resources/hudson/plugins/git/browser/rawchangelog-with-deleted-file");
         assertNull("Do not return a diff link for added files.", tracSvnBrowser.getDiffLink(path3));
     }
@@ -133,4 +162,82 @@ public class TracSvnRepositoryBrowserTest {
     
 
 
+    /**
+     * The project property is looked up once for all the links of a changeset,
+     * and again once a project has been saved.
+     */
+    @Test
+    public void testPropertyResolvedOncePerChangeSet() throws IOException, SAXException {
+        final LogEntry changeSet = TracSvnHelper.createChangeSet("changelog_unsorted.xml");
+        for (final Path path : changeSet.getPaths()) {
+            tracSvnBrowser.getDiffLink(path);
+            tracSvnBrowser.getFileLink(path);
+        }
+        tracSvnBrowser.getChangeSetLink(changeSet);
+        assertEquals(1, tracSvnBrowser.lookups);
+
+        TracProjectProperty.GENERATION.incrementAndGet();
+        tracSvnBrowser.getChangeSetLink(changeSet);
+        assertEquals(2, tracSvnBrowser.lookups);
+    }
+
+    /**
+     * Test method for {@link TracRepositoryBrowser#getLinks(LogEntry)}.
+     * The links made at once are the same as the ones made one by one.
+     */
+    @Test
+    public void testGetLinks() throws IOException, SAXException {
+        final LogEntry changeSet = TracSvnHelper.createChangeSet("changelog_unsorted.xml");
+        final TracChangeSetLinks links = tracSvnBrowser.getLinks(changeSet);
+        assertEquals(tracSvnBrowser.getChangeSetLink(changeSet).toString(), links.getChangeSetLink());
+        final Iterator<TracChangeSetLinks.PathLinks> it = links.getPaths().iterator();
+        for (final Path path : changeSet.getPaths()) {
+            final TracChangeSetLinks.PathLinks pathLinks = it.next();
+            assertEquals(path.getValue(), pathLinks.getPath());
+            assertEquals(path.getEditType(), pathLinks.getEditType());
+            assertEquals(String.valueOf(tracSvnBrowser.getFileLink(path)), pathLinks.getFileLink());
+            assertEquals(String.valueOf(tracSvnBrowser.getDiffLink(path)), String.valueOf(pathLinks.getDiffLink()));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * The #fileN anchors number the paths in the order Trac lists them,
+     * whatever the order of the log entry.
+     */
+    @Test
+    public void testDiffLinkAnchorsFollowPathOrder() throws IOException {
+        final LogEntry changeSet = new LogEntry();
+        changeSet.setRevision(68100);
+        final String[] names = {"/trunk/b", "/trunk/a/b", "/trunk/a.txt", "/trunk/a"};
+        for (final String name : names) {
+            final Path path = new Path();
+            path.setValue(name);
+            path.setAction("M");
+            changeSet.addPath(path);
+        }
+
+        final String[] order = {"/trunk/a", "/trunk/a.txt", "/trunk/a/b", "/trunk/b"};
+        final List<Path> paths = changeSet.getPaths();
+        for (int i = 0; i < order.length; i++) {
+            final Path path = paths.get(Arrays.asList(names).indexOf(order[i]));
+            assertEquals(TRAC_URL + "/changeset/68100#file" + i, tracSvnBrowser.getDiffLink(path).toString());
+            assertEquals(order[i], tracSvnBrowser.getLinks(changeSet).getPaths().get(i).getPath());
+        }
+    }
+
+    /**
+     * Links go into the repository the SCM URL maps to, which is only resolved once.
+     */
+    @Test
+    public void testMultipleRepositories() throws IOException, SAXException {
+        final MultiRepositoryBrowserMock browser = new MultiRepositoryBrowserMock();
+        final HashMap<String, Path> pathMap = TracSvnHelper.createPathMap("changelog_unsorted.xml");
+        final Path path = pathMap.get("/src/main/java/hudson/plugins/git/browser/GithubWeb.java");
+        assertEquals(TRAC_URL + "/changeset/68100/two", browser.getChangeSetLink(path.getLogEntry()).toString());
+        assertEquals(TRAC_URL + "/changeset/68100/two#file0", browser.getDiffLink(path).toString());
+        assertEquals(TRAC_URL + "/browser/two/src/main/java/hudson/plugins/git/browser/GithubWeb.java#L1", browser.getFileLink(path).toString());
+        browser.getChangeSetLink(TracSvnHelper.createChangeSet("changelog-with-deleted-file.xml"));
+        assertEquals(1, browser.urlLookups);
+    }
 }
@@ -0,0 +1,194 @@
+package hudson.plugins.trac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TracTicketCache}.
+ */
+public class TracTicketCacheTest {
+
+    /**
+     * Remembers the loads, completing them only when told to.
+     */
+    private static final class ManualLoader implements TracTicketCache.Loader {
+        final List<Integer> ids = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<TracRpcClient.Callback<TracTicket>> callbacks =
+                Collections.synchronizedList(new ArrayList<TracRpcClient.Callback<TracTicket>>());
+
+        public void load(String url, int id, TracRpcClient.Callback<TracTicket> callback) {
+            ids.add(id);
+            callbacks.add(callback);
+        }
+
+        void complete(int i, String summary) {
+            callbacks.get(i).completed(ticket(ids.get(i), summary));
+        }
+    }
+
+    private static TracTicket ticket(int id, String summary) {
+        return new TracTicket(id, Collections.<String,Object>singletonMap("summary", summary));
+    }
+
+    @Test
+    public void testMissLoadsThenHits() throws Exception {
+        ManualLoader loader = new ManualLoader();
+        TracTicketCache cache = new TracTicketCache(10, 60000, 60000, loader);
+
+        assertNull(cache.getIfPresent("http://trac/", 1));
+        Future<TracTicket> f = cache.get("http://trac/", 1);
+        assertEquals(Arrays.asList(1), loader.ids);
+        Thread.sleep(100);
+        loader.complete(0, "One");
+        assertEquals("One", f.get().getSummary());
+
+        assertEquals("One", cache.getIfPresent("http://trac/", 1).getSummary());
+        assertEquals("One", cache.get("http://trac/", 1).get().getSummary());
+        assertEquals(1, loader.ids.size());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getLoadCount());
+        double average = cache.getAverageLoadTime();
+        assertTrue("took "+average, average>=100 && average<10000);
+
+        cache.get("http://trac/", 2);
+        assertEquals(2, cache.getLoadCount());
+        assertEquals("the load in progress doesn't count", average, cache.getAverageLoadTime(), 0);
+    }
+
+    @Test
+    public void testSitesAreSeparate() {
+        ManualLoader loader = new ManualLoader();
+        TracTicketCache cache = new TracTicketCache(10, 60000, 60000, loader);
+        cache.get("http://trac/", 1);
+        loader.complete(0, "One");
+        assertNull(cache.getIfPresent("http://other-trac/", 1));
+        assertEquals(2, loader.ids.size());
+    }
+
+    @Test
+    public void testRemoveSite() {
+        ManualLoader loader = new ManualLoader();
+        TracTicketCache cache = new TracTicketCache(10, 60000, 60000, loader);
+        cache.get("http://trac/", 1);
+        cache.get("http://other-trac/", 1);
+        loader.complete(0, "One");
+        loader.complete(1, "Other");
+
+        cache.removeSite("http://trac/");
+        assertEquals(1, cache.size());
+        assertNull(cache.getIfPresent("http://trac/", 1));
+        assertEquals("Other", cache.getIfPresent("http://other-trac/", 1).getSummary());
+    }
+
+    @Test
+    public void testConcurrentRequestsLoadOnce() throws Exception {
+        final ManualLoader loader = new ManualLoader();
+        final TracTicketCache cache = new TracTicketCache(10, 60000, 60000, loader);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(200);
+        try {
+            List<Future<TracTicket>> results = new ArrayList<Future<TracTicket>>();
+            for (int i=0; i<200; i++)
+                results.add(pool.submit(new Callable<TracTicket>() {
+                    public TracTicket call() throws Exception {
+                        start.await();
+                        return cache.get("http://trac/", 1234).get();
+                    }
+                }));
+            start.countDown();
+            while (cache.getMissCount()<200)
+                Thread.sleep(1);
+            loader.complete(0, "Shared");
+            for (Future<TracTicket> r : results)
+                assertEquals("Shared", r.get(10, TimeUnit.SECONDS).getSummary());
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(Arrays.asList(1234), loader.ids);
+        assertEquals(1, cache.getLoadCount());
+    }
+
+    @Test
+    public void testStaleIsReturnedWhileRefreshing() throws Exception {
+        ManualLoader loader = new ManualLoader();
+        TracTicketCache cache = new TracTicketCache(10, 0, 60000, loader);
+        cache.get("http://trac/", 1);
+        loader.complete(0, "Old");
+
+        assertEquals("Old", cache.getIfPresent("http://trac/", 1).getSummary());
+        assertEquals("Old", cache.get("http://trac/", 1).get().getSummary());
+        assertEquals(2, cache.getStaleHitCount());
+        assertEquals("only one refresh at a time", 2, loader.ids.size());
+
+        loader.complete(1, "New");
+        assertEquals("New", cache.getIfPresent("http://trac/", 1).getSummary());
+    }
+
+    @Test
+    public void testTooOldIsMissing() {
+        ManualLoader loader = new ManualLoader();
+        TracTicketCache cache = new TracTicketCache(10, 0, 0, loader);
+        cache.get("http://trac/", 1);
+        loader.complete(0, "Old");
+        assertNull(cache.getIfPresent("http://trac/", 1));
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testFailureIsNotRetriedRightAway() throws Exception {
+        ManualLoader loader = new ManualLoader();
+        TracTicketCache cache = new TracTicketCache(10, 60000, 60000, loader);
+        Future<TracTicket> f = cache.get("http://trac/", 1);
+        TracRpcException fault = new TracRpcException(404, "Ticket 1 does not exist.");
+        loader.callbacks.get(0).failed(fault);
+        try {
+            f.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(fault, e.getCause());
+        }
+        try {
+            cache.get("http://trac/", 1).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TracRpcException);
+        }
+        assertNull(cache.getIfPresent("http://trac/", 1));
+        assertEquals(1, loader.ids.size());
+        assertEquals(1, cache.getFailedLoadCount());
+    }
+
+    @Test
+    public void testPrefetchAndEviction() {
+        ManualLoader loader = new ManualLoader();
+        TracTicketCache cache = new TracTicketCache(2, 60000, 60000, loader);
+        cache.prefetch("http://trac/", Arrays.asList(1, 2, 3));
+        assertEquals(Arrays.asList(1, 2, 3), loader.ids);
+        for (int i=0; i<3; i++)
+            loader.complete(i, "Ticket");
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.getPrefetchLoadCount());
+        assertEquals(0, cache.getMissCount());
+        assertNull(cache.getIfPresent("http://trac/", 1));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+    }
+}
@@ -0,0 +1,231 @@
+package hudson.plugins.trac;
+
+import hudson.model.Item;
+import hudson.security.Permission;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TracTicketIndex}, {@link TracBuildTable} and the lookups of {@link TracTicketIndexAction}.
+ */
+public class TracTicketIndexTest {
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("trac", "index");
+        dir.delete();
+        dir.mkdirs();
+        file = new File(dir, TracTicketIndex.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    private File journal() {
+        return new File(file.getPath()+".log");
+    }
+
+    @Test
+    public void testAddAndGet() throws IOException {
+        TracTicketIndex index = TracTicketIndex.load(file);
+        assertArrayEquals(new int[0], index.get(4711));
+        index.add(3, new int[] {4711, 12});
+        index.add(1, new int[] {4711});
+        index.add(3, new int[] {4711});
+        assertArrayEquals(new int[] {1, 3}, index.get(4711));
+        assertArrayEquals(new int[] {3}, index.get(12));
+        assertArrayEquals(new int[0], index.get(13));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testReloadFromJournal() throws IOException {
+        TracTicketIndex index = TracTicketIndex.load(file);
+        index.add(1, new int[] {5});
+        index.add(2, new int[] {5, 6});
+        index.remove(1);
+        assertFalse("not compacted yet", file.exists());
+
+        TracTicketIndex reloaded = TracTicketIndex.load(file);
+        assertArrayEquals(new int[] {2}, reloaded.get(5));
+        assertArrayEquals(new int[] {2}, reloaded.get(6));
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        TracTicketIndex index = TracTicketIndex.load(file);
+        for (int build=1; build<=TracTicketIndex.COMPACT_THRESHOLD; build++)
+            index.add(build, new int[] {build%10, 100});
+        assertTrue(file.exists());
+        assertFalse(journal().exists());
+        assertEquals(4+4+11*4+12*4+TracTicketIndex.COMPACT_THRESHOLD*2*4, file.length());
+
+        index.remove(100);
+        index.add(300, new int[] {7});
+        int[] builds = index.get(100);
+        assertEquals(TracTicketIndex.COMPACT_THRESHOLD-1, builds.length);
+        assertEquals(1, builds[0]);
+        assertEquals(TracTicketIndex.COMPACT_THRESHOLD, builds[builds.length-1]);
+
+        TracTicketIndex reloaded = TracTicketIndex.load(file);
+        assertArrayEquals(builds, reloaded.get(100));
+        assertArrayEquals(index.get(7), reloaded.get(7));
+        assertEquals(300, reloaded.get(7)[reloaded.get(7).length-1]);
+        assertEquals("10, 20, ... but 100", TracTicketIndex.COMPACT_THRESHOLD/10-1, reloaded.get(0).length);
+        for (int b : reloaded.get(0))
+            assertEquals(0, b%10);
+    }
+
+    @Test
+    public void testJournalCutShort() throws IOException {
+        TracTicketIndex index = TracTicketIndex.load(file);
+        index.add(1, new int[] {5});
+        index.add(2, new int[] {5});
+        RandomAccessFile raf = new RandomAccessFile(journal(), "rw");
+        try {
+            raf.setLength(raf.length()-2);
+        } finally {
+            raf.close();
+        }
+
+        TracTicketIndex reloaded = TracTicketIndex.load(file);
+        assertArrayEquals(new int[] {1}, reloaded.get(5));
+        assertFalse("merged and dropped", journal().exists());
+        reloaded.add(3, new int[] {5});
+        assertArrayEquals(new int[] {1, 3}, TracTicketIndex.load(file).get(5));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptedIndex() throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] {0, 0, 0, 1, 0x7f, 0, 0, 0});
+        } finally {
+            out.close();
+        }
+        TracTicketIndex.load(file);
+    }
+
+    @Test
+    public void testUnion() {
+        assertArrayEquals(new int[] {1, 2, 3, 5, 8}, TracTicketIndex.union(new int[] {1, 3, 5}, new int[] {2, 3, 8}));
+        assertArrayEquals(new int[] {4}, TracTicketIndex.union(new int[0], new int[] {4}));
+    }
+
+    @Test
+    public void testBuildTable() throws IOException {
+        File f = new File(dir, "builds.bin");
+        TracBuildTable table = TracBuildTable.load(f);
+        assertEquals(0, table.add("folder/job-\u00e4", 12));
+        assertEquals(1, table.add("other", 12));
+        assertEquals(0, table.add("folder/job-\u00e4", 12));
+        assertEquals(-1, table.find("other", 13));
+
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(raf.length()-1);  // the last build cut short
+        } finally {
+            raf.close();
+        }
+        table = TracBuildTable.load(f);
+        assertEquals(1, table.size());
+        assertEquals("folder/job-\u00e4", table.getJob(0));
+        assertEquals(12, table.getNumber(0));
+        assertEquals(1, table.add("third", 1));
+        assertEquals("third", TracBuildTable.load(f).getJob(1));
+    }
+
+    @Test
+    public void testBuildTableRename() throws IOException {
+        File f = new File(dir, "builds.bin");
+        TracBuildTable table = TracBuildTable.load(f);
+        assertEquals(0, table.add("folder/job", 1));
+        assertEquals(1, table.add("folder-2/job", 1));
+        assertEquals(2, table.add("folder", 1));
+        table.rename("folder", "renamed");
+        assertEquals("renamed/job", table.getJob(0));
+        assertEquals("folder-2/job", table.getJob(1));
+        assertEquals("renamed", table.getJob(2));
+        assertEquals(0, table.find("renamed/job", 1));
+        assertEquals(-1, table.find("folder/job", 1));
+        table.rename("renamed/job", "renamed/other");
+        table.rename("nothing", "else");
+        assertEquals(3, table.add("folder/job", 1));
+
+        table = TracBuildTable.load(f);
+        assertEquals(4, table.size());
+        assertEquals("renamed/other", table.getJob(0));
+        assertEquals("renamed", table.getJob(2));
+        assertEquals("folder/job", table.getJob(3));
+        assertEquals(0, table.find("renamed/other", 1));
+        assertEquals(1, table.find("folder-2/job", 1));
+        assertEquals(3, table.find("folder/job", 1));
+    }
+
+    /**
+     * A job that only {@link Item#getFullName()}, {@link Item#getUrl()} and
+     * {@link Item#hasPermission(Permission)} are called on.
+     */
+    private static Item job(final String fullName, final boolean readable) {
+        return (Item) Proxy.newProxyInstance(Item.class.getClassLoader(), new Class<?>[] {Item.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("hasPermission"))
+                            return readable && args[0]==Item.READ;
+                        if (method.getName().equals("getUrl"))
+                            return "job/"+fullName+"/";
+                        if (method.getName().equals("getFullName"))
+                            return fullName;
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Test
+    public void testGlobalBuildsOfJobsNotReadAreLeftOut() throws IOException {
+        TracBuildTable table = TracBuildTable.load(new File(dir, "builds.bin"));
+        final Map<String,Item> jobs = new HashMap<String,Item>();
+        jobs.put("public", job("public", true));
+        jobs.put("secret", job("secret", false));
+        int[] ids = {
+            table.add("public", 1),
+            table.add("secret", 1),
+            table.add("deleted", 1),
+            table.add("public", 2),
+        };
+        List<TracTicketIndexAction.BuildRef> builds = TracTicketIndexAction.getBuilds(ids, table,
+                new TracTicketIndexAction.Jobs() {
+                    public Item get(String fullName) {
+                        return jobs.get(fullName);
+                    }
+                });
+        assertEquals(2, builds.size());
+        assertEquals("job/public/2/", builds.get(0).getUrl());
+        assertEquals("job/public/1/", builds.get(1).getUrl());
+    }
+}
@@ -0,0 +1,228 @@
+package hudson.plugins.trac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TracTicketUpdateQueue}.
+ */
+public class TracTicketUpdateQueueTest {
+
+    private static final String TRAC_URL = "http://trac/";
+
+    private File dir;
+    private ScheduledExecutorService scheduler;
+    private final RecordingSender sender = new RecordingSender();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("trac", "queue");
+        dir.delete();
+        dir.mkdirs();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    /**
+     * One comment sent to Trac, waiting to be answered.
+     */
+    private static final class Update {
+        final int id;
+        final String comment;
+        final TracRpcClient.Callback<TracTicket> callback;
+
+        Update(int id, String comment, TracRpcClient.Callback<TracTicket> callback) {
+            this.id = id;
+            this.comment = comment;
+            this.callback = callback;
+        }
+
+        void complete() {
+            callback.completed(new TracTicket(id, new HashMap<String,Object>()));
+        }
+    }
+
+    private static final class RecordingSender implements TracTicketUpdateQueue.Sender {
+        final BlockingQueue<Update> updates = new LinkedBlockingQueue<Update>();
+
+        public void update(String url, int id, String comment, TracRpcClient.Callback<TracTicket> callback) {
+            assertEquals(TRAC_URL, url);
+            updates.add(new Update(id, comment, callback));
+        }
+
+        Update next() throws InterruptedException {
+            Update u = updates.poll(5, TimeUnit.SECONDS);
+            assertNotNull("nothing sent", u);
+            return u;
+        }
+    }
+
+    private TracTicketUpdateQueue queue(long window, long backoff, int maxAttempts) {
+        return new TracTicketUpdateQueue(dir, window, backoff, maxAttempts, sender, scheduler);
+    }
+
+    @Test
+    public void testLinesWithinWindowAreOneComment() throws Exception {
+        TracTicketUpdateQueue queue = queue(200, 10, 3);
+        queue.add(TRAC_URL, 1, " * job-a #1: SUCCESS");
+        queue.add(TRAC_URL, 2, " * job-a #1: SUCCESS");
+        queue.add(TRAC_URL, 1, " * job-b #7: FAILURE");
+        assertEquals(2, queue.size());
+        assertEquals(2, dir.listFiles().length);
+
+        Map<Integer,Update> sent = new HashMap<Integer,Update>();
+        for (int i=0; i<2; i++) {
+            Update u = sender.next();
+            sent.put(u.id, u);
+        }
+        assertEquals(" * job-a #1: SUCCESS\n * job-b #7: FAILURE", sent.get(1).comment);
+        assertEquals(" * job-a #1: SUCCESS", sent.get(2).comment);
+
+        sent.get(1).complete();
+        sent.get(2).complete();
+        assertEquals(0, queue.size());
+        assertEquals(0, dir.listFiles().length);
+        assertEquals(2, queue.getSentCount());
+    }
+
+    @Test
+    public void testLinesAddedWhileSendingGoIntoNextComment() throws Exception {
+        TracTicketUpdateQueue queue = queue(50, 10, 3);
+        queue.add(TRAC_URL, 1, "first");
+        Update u = sender.next();
+        queue.add(TRAC_URL, 1, "second");
+        u.complete();
+        assertEquals(Arrays.asList("second"), queue.getLines(TRAC_URL, 1));
+
+        u = sender.next();
+        assertEquals("second", u.comment);
+        u.complete();
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testSurvivesRestart() throws Exception {
+        queue(60*60*1000L, 10, 3).add(TRAC_URL, 42, "before the restart");
+        scheduler.shutdownNow();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        TracTicketUpdateQueue queue = queue(10, 10, 3);
+        assertEquals(Arrays.asList("before the restart"), queue.getLines(TRAC_URL, 42));
+        Update u = sender.next();
+        assertEquals(42, u.id);
+        assertEquals("before the restart", u.comment);
+        u.complete();
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void testSitesWithTheSameHashHaveTheirOwnFiles() throws Exception {
+        String a = TRAC_URL+"Aa/", b = TRAC_URL+"BB/";
+        assertEquals(a.hashCode(), b.hashCode());
+        queue(60*60*1000L, 10, 3).add(a, 1, "on a");
+        queue(60*60*1000L, 10, 3).add(b, 1, "on b");
+        assertEquals(2, dir.listFiles().length);
+
+        TracTicketUpdateQueue queue = queue(60*60*1000L, 10, 3);
+        assertEquals(Arrays.asList("on a"), queue.getLines(a, 1));
+        assertEquals(Arrays.asList("on b"), queue.getLines(b, 1));
+    }
+
+    @Test
+    public void testRetriesWithBackoffThenGivesUp() throws Exception {
+        TracTicketUpdateQueue queue = queue(10, 10, 3);
+        queue.add(TRAC_URL, 1, "line");
+        for (int i=0; i<3; i++)
+            sender.next().callback.failed(new IOException("Connection refused"));
+
+        assertNull("given up", sender.updates.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.size());
+        assertEquals(2, queue.getRetryCount());
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void testRetryKeepsTheLines() throws Exception {
+        TracTicketUpdateQueue queue = queue(10, 10, 3);
+        queue.add(TRAC_URL, 1, "line");
+        sender.next().callback.failed(new IOException("Read timed out"));
+        Update u = sender.next();
+        assertEquals("line", u.comment);
+        u.complete();
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testFaultIsNotRetried() throws Exception {
+        TracTicketUpdateQueue queue = queue(10, 10, 3);
+        queue.add(TRAC_URL, 404, "line");
+        sender.next().callback.failed(new TracRpcException(404, "Ticket 404 does not exist."));
+
+        assertNull(sender.updates.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getRetryCount());
+    }
+
+    @Test
+    public void testRefusedIsNotRetried() throws Exception {
+        TracTicketUpdateQueue queue = queue(10, 10, 3);
+        queue.add(TRAC_URL, 1, "line");
+        sender.next().callback.failed(new TracHttpException(401, "Calling ticket.update on http://trac/login/xmlrpc failed with HTTP 401"));
+
+        assertNull(sender.updates.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getRetryCount());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void testLinesWaitingWhileSendingAreBounded() throws Exception {
+        int max = TracTicketUpdateQueue.MAX_LINES;
+        TracTicketUpdateQueue queue = queue(10, 10, 3);
+        queue.add(TRAC_URL, 1, "sent");
+        Update u = sender.next();
+        for (int i=0; i<2*max; i++)
+            queue.add(TRAC_URL, 1, "new "+i);
+        List<String> lines = queue.getLines(TRAC_URL, 1);
+        assertEquals(1+max, lines.size());
+        assertEquals("sent", lines.get(0));
+        assertEquals("new "+max, lines.get(1));
+        assertEquals(max, queue.getDroppedCount());
+
+        u.callback.failed(new IOException("Read timed out"));
+        lines = queue.getLines(TRAC_URL, 1);
+        assertEquals(max, lines.size());
+        assertEquals("new "+max, lines.get(0));
+        assertEquals(max+1, queue.getDroppedCount());
+
+        u = sender.next();
+        queue.add(TRAC_URL, 1, "last");
+        u.complete();
+        assertEquals(Arrays.asList("last"), queue.getLines(TRAC_URL, 1));
+    }
+}
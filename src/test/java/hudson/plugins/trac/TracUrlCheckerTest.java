@@ -0,0 +1,130 @@
+package hudson.plugins.trac;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.util.FormValidation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link TracUrlChecker} against an HTTP server standing in for Trac.
+ */
+public class TracUrlCheckerTest {
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile CountDownLatch release = new CountDownLatch(0);
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                int code = exchange.getRequestURI().getPath().startsWith("/trac/") ? 200 : 404;
+                exchange.sendResponseHeaders(code, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:"+server.getAddress().getPort()+path);
+    }
+
+    @Test
+    public void testOutcomeIsCached() throws Exception {
+        TracUrlChecker checker = new TracUrlChecker(2000, 60000);
+        assertEquals(FormValidation.Kind.OK, checker.check(url("/trac/")).kind);
+        assertEquals(FormValidation.Kind.OK, checker.check(url("/trac/")).kind);
+        assertEquals(FormValidation.Kind.ERROR, checker.check(url("/typo/")).kind);
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testExpiredOutcomeIsCheckedAgain() throws Exception {
+        TracUrlChecker checker = new TracUrlChecker(2000, 0);
+        checker.check(url("/trac/"));
+        checker.check(url("/trac/"));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testConcurrentChecksShareOneRequest() throws Exception {
+        release = new CountDownLatch(1);
+        final TracUrlChecker checker = new TracUrlChecker(5000, 60000);
+        final URL url = url("/trac/");
+        final List<FormValidation> outcomes = new ArrayList<FormValidation>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i=0; i<8; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    FormValidation v = checker.check(url);
+                    synchronized (outcomes) {
+                        outcomes.add(v);
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        while (requests.get()==0)
+            Thread.sleep(10);
+        Thread.sleep(100);  // give the other threads time to pile up
+        release.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(1, requests.get());
+        assertEquals(8, outcomes.size());
+        for (FormValidation v : outcomes)
+            assertEquals(FormValidation.Kind.OK, v.kind);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        release = new CountDownLatch(1);
+        try {
+            TracUrlChecker checker = new TracUrlChecker(200, 60000);
+            assertEquals(FormValidation.Kind.WARNING, checker.check(url("/trac/")).kind);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testConnectionRefused() throws Exception {
+        ServerSocket s = new ServerSocket(0);
+        int port = s.getLocalPort();
+        s.close();
+        TracUrlChecker checker = new TracUrlChecker(2000, 60000);
+        assertEquals(FormValidation.Kind.ERROR, checker.check(new URL("http://127.0.0.1:"+port+"/trac/")).kind);
+    }
+}